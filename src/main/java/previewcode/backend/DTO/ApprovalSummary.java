@@ -0,0 +1,36 @@
+package previewcode.backend.DTO;
+
+import java.util.Map;
+
+/**
+ * The review progress of a pull request, per reviewer
+ */
+public class ApprovalSummary {
+
+    /**
+     * The number of hunks in the ordering of the pull request
+     */
+    public int hunks;
+
+    /**
+     * If the ordering has hunks, there is a reviewer and no reviewer has hunks left to review
+     */
+    public boolean fullyReviewed;
+
+    /**
+     * The progress of every reviewer by their GitHub user id
+     */
+    public Map<String, Reviewer> reviewers;
+
+    /**
+     * The number of hunks a reviewer approved, disapproved or has not reviewed yet
+     */
+    public static class Reviewer {
+
+        public long approved;
+
+        public long disapproved;
+
+        public long pending;
+    }
+}
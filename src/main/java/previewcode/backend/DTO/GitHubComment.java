@@ -0,0 +1,25 @@
+package previewcode.backend.DTO;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * DTO representing a comment that was placed on GitHub.
+ */
+@JsonIgnoreProperties(ignoreUnknown=true)
+public class GitHubComment {
+    public final Integer id;
+    public final String body;
+    public final String url;
+
+    @JsonCreator
+    public GitHubComment(
+            @JsonProperty("id") Integer id,
+            @JsonProperty("body") String body,
+            @JsonProperty("html_url") String url) {
+        this.id = id;
+        this.body = body;
+        this.url = url;
+    }
+}
@@ -10,6 +10,7 @@ public class GitHubPullRequest {
     public final String url;
     public final String title;
     public final Integer number;
+    public final GitHubUser user;
     public final PullRequestLinks links;
 
     private static final String PREVIEW_URL = "https://preview-code.com/";
@@ -20,11 +21,13 @@ public class GitHubPullRequest {
             @JsonProperty("body") String body,
             @JsonProperty("url") String url,
             @JsonProperty("number") Integer number,
+            @JsonProperty("user") GitHubUser user,
             @JsonProperty("_links") PullRequestLinks links) {
         this.title = title;
         this.body = body;
         this.url = url;
         this.number = number;
+        this.user = user;
         this.links = links;
     }
 
@@ -0,0 +1,35 @@
+package previewcode.backend.DTO;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * DTO representing an access token for a GitHub Integration Installation.
+ *
+ * More info on:
+ *  https://developer.github.com/v3/integrations/installations/#create-a-new-installation-token
+ */
+@JsonIgnoreProperties(ignoreUnknown=true)
+public class InstallationToken {
+    public final String token;
+    public final Instant expiresAt;
+
+    @JsonCreator
+    public InstallationToken(
+            @JsonProperty("token") String token,
+            @JsonProperty("expires_at") String expiresAt) {
+        this.token = token;
+        this.expiresAt = Instant.parse(expiresAt);
+    }
+
+    /**
+     * @return whether the token is still valid for at least the given duration.
+     */
+    public boolean isValidFor(Duration duration) {
+        return Instant.now().plus(duration).isBefore(expiresAt);
+    }
+}
@@ -37,7 +37,7 @@ public class OrderingStatus extends GitHubStatus {
     }
 
     public static Optional<OrderingStatus> fromGitHubStatus(GitHubStatus status) {
-        if (status.context.equals(CONTEXT)) {
+        if (CONTEXT.equals(status.context)) {
             return Optional.of(new OrderingStatus(status.state, status.description, status.url));
         } else {
             return Optional.empty();
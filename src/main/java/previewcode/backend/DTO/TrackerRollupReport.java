@@ -0,0 +1,76 @@
+package previewcode.backend.DTO;
+
+import java.util.List;
+
+/**
+ * The navigation of reviewers within a time range, as rolled up from tracker events
+ */
+public class TrackerRollupReport {
+
+    /**
+     * The start of the time range, in milliseconds since the epoch
+     */
+    public long from;
+
+    /**
+     * The end of the time range, in milliseconds since the epoch
+     */
+    public long to;
+
+    /**
+     * The most frequent transitions, most frequent first
+     */
+    public List<Transition> transitions;
+
+    /**
+     * The time spent on the most visited paths, most visited first
+     */
+    public List<Dwell> dwell;
+
+    /**
+     * The number of times reviewers went from one path to another
+     */
+    public static class Transition {
+
+        /**
+         * The path the reviewers left
+         */
+        public String oldPath;
+
+        /**
+         * The path the reviewers went to
+         */
+        public String newPath;
+
+        /**
+         * The number of times this happened
+         */
+        public long count;
+    }
+
+    /**
+     * The time reviewers stayed on a path before they left it
+     */
+    public static class Dwell {
+
+        /**
+         * The path
+         */
+        public String path;
+
+        /**
+         * The number of times reviewers left the path
+         */
+        public long count;
+
+        /**
+         * The mean time reviewers stayed on the path
+         */
+        public double meanMillis;
+
+        /**
+         * The longest time a reviewer stayed on the path
+         */
+        public long maxMillis;
+    }
+}
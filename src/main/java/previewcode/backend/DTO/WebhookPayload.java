@@ -0,0 +1,80 @@
+package previewcode.backend.DTO;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+
+/**
+ * The payload of a webhook delivery, parsed once when the delivery is received.
+ *
+ * The raw body is kept for the journal, the typed views are only bound when they are first used.
+ *
+ * More info on:
+ *  https://developer.github.com/webhooks/#payloads
+ */
+public class WebhookPayload {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * The body as it was received
+     */
+    public final byte[] body;
+
+    private final JsonNode tree;
+
+    private GitHubRepository repository;
+    private GitHubPullRequest pullRequest;
+
+    private WebhookPayload(byte[] body, JsonNode tree) {
+        this.body = body;
+        this.tree = tree;
+    }
+
+    /**
+     * Parses the body of a webhook delivery.
+     *
+     * @throws IOException when the body is not valid JSON.
+     */
+    public static WebhookPayload parse(byte[] body) throws IOException {
+        return new WebhookPayload(body, mapper.readTree(body));
+    }
+
+    /**
+     * @return the action that triggered the event, e.g. `opened`, or `null` if the event has no action.
+     */
+    public String action() {
+        return tree.path("action").asText(null);
+    }
+
+    /**
+     * @return the id of the installation that sent the event, or `null` if the payload holds none.
+     */
+    public String installationId() {
+        return tree.path("installation").path("id").asText(null);
+    }
+
+    /**
+     * @return the repository the event occurred in.
+     * @throws JsonProcessingException when the payload has no valid repository.
+     */
+    public GitHubRepository repository() throws JsonProcessingException {
+        if (repository == null) {
+            repository = mapper.treeToValue(tree.get("repository"), GitHubRepository.class);
+        }
+        return repository;
+    }
+
+    /**
+     * @return the pull request of a `pull_request` event.
+     * @throws JsonProcessingException when the payload has no valid pull request.
+     */
+    public GitHubPullRequest pullRequest() throws JsonProcessingException {
+        if (pullRequest == null) {
+            pullRequest = mapper.treeToValue(tree.get("pull_request"), GitHubPullRequest.class);
+        }
+        return pullRequest;
+    }
+}
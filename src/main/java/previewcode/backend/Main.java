@@ -4,6 +4,11 @@ import com.google.common.base.Strings;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 import com.google.inject.servlet.GuiceFilter;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
 import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
@@ -16,11 +21,21 @@ import org.jboss.resteasy.plugins.guice.GuiceResteasyBootstrapServletContextList
 import org.jboss.resteasy.plugins.server.servlet.HttpServletDispatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import previewcode.backend.services.ShutdownRegistry;
+import previewcode.backend.services.WebhookProcessor;
+
+import java.io.IOException;
+import java.time.Duration;
 
 public class Main {
 
     private static Logger logger = LoggerFactory.getLogger(Main.class);
 
+    /**
+     * The time queued work is given to finish when the backend shuts down.
+     */
+    private static final Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds(20);
+
     public static void main(String[] args) throws Exception {
 
         // jetty.xml config
@@ -42,7 +57,8 @@ public class Main {
 
         server.setDumpAfterStart(false);
         server.setDumpBeforeStop(false);
-        server.setStopAtShutdown(true);
+        // Stopped by our own shutdown hook, which finishes queued work after the server has stopped
+        server.setStopAtShutdown(false);
         server.setStopTimeout(5000);
 
 
@@ -71,7 +87,42 @@ public class Main {
         servletHandler.addServlet(sh, "/*");
 
         server.setHandler(servletHandler);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.stop();
+            } catch (Exception e) {
+                logger.error("Failed to stop server:", e);
+            }
+            injector.getInstance(ShutdownRegistry.class).shutdown(SHUTDOWN_TIMEOUT);
+        }, "shutdown"));
+        // Queue the deliveries that were accepted but not processed before the last shutdown
+        injector.getInstance(WebhookProcessor.class).replay();
         server.start();
+        warmUpGitHubConnections(injector.getInstance(OkHttpClient.class));
         server.join();
     }
+
+    /**
+     * Opens the connection to the GitHub API before the first request needs it.
+     * `/rate_limit` is used because calls to it do not count against the rate limit.
+     */
+    private static void warmUpGitHubConnections(OkHttpClient client) {
+        Request request = new Request.Builder()
+                .url("https://api.github.com/rate_limit")
+                .get()
+                .build();
+
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                logger.warn("Could not pre-warm connection to GitHub:", e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                logger.info("Connection to GitHub pre-warmed using " + response.protocol());
+                response.close();
+            }
+        });
+    }
 }
@@ -2,29 +2,47 @@ package previewcode.backend;
 
 import com.auth0.jwt.algorithms.Algorithm;
 import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
 import com.google.common.io.Files;
 import com.google.firebase.FirebaseApp;
 import com.google.firebase.FirebaseOptions;
+import com.google.inject.Provider;
 import com.google.inject.Provides;
+import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import com.google.inject.servlet.RequestScoped;
 import com.google.inject.servlet.ServletModule;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import org.jboss.resteasy.plugins.guice.ext.JaxrsModule;
 import org.jboss.resteasy.plugins.providers.jackson.ResteasyJackson2Provider;
 import org.jboss.resteasy.util.Base64;
 import org.kohsuke.github.GitHub;
+import org.kohsuke.github.HttpConnector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import previewcode.backend.DTO.WebhookPayload;
 import previewcode.backend.api.exceptionmapper.GitHubApiExceptionMapper;
 import previewcode.backend.api.exceptionmapper.IllegalArgumentExceptionMapper;
+import previewcode.backend.api.exceptionmapper.StorageUnavailableExceptionMapper;
 import previewcode.backend.api.filter.GitHubAccessTokenFilter;
 import previewcode.backend.api.v1.AssigneesAPI;
 import previewcode.backend.api.v1.CommentsAPI;
+import previewcode.backend.api.v1.MetricsAPI;
 import previewcode.backend.api.v1.PullRequestAPI;
 import previewcode.backend.api.v1.StatusAPI;
 import previewcode.backend.api.v1.TrackerAPI;
 import previewcode.backend.api.v1.WebhookAPI;
+import previewcode.backend.services.FirebaseService;
+import previewcode.backend.services.GitHubSession;
+import previewcode.backend.services.GitHubSessionCache;
 import previewcode.backend.services.GithubService;
+import previewcode.backend.services.LocalStorageService;
+import previewcode.backend.services.OkHttpConnector;
+import previewcode.backend.services.StorageService;
+import previewcode.backend.services.TrackerPipeline;
 
 import javax.crypto.spec.SecretKeySpec;
 import javax.ws.rs.NotAuthorizedException;
@@ -35,6 +53,8 @@ import java.io.IOException;
 import java.security.KeyFactory;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The main module of the backend
@@ -62,9 +82,28 @@ public class MainModule extends ServletModule {
         this.bind(TrackerAPI.class);
         this.bind(IllegalArgumentExceptionMapper.class);
         this.bind(GitHubApiExceptionMapper.class);
+        this.bind(StorageUnavailableExceptionMapper.class);
         this.bind(ResteasyJackson2Provider.class);
         this.bind(WebhookAPI.class);
+        this.bind(MetricsAPI.class);
 
+        String backend = System.getenv("STORAGE_BACKEND");
+        if ("local".equalsIgnoreCase(Strings.nullToEmpty(backend).trim())) {
+            logger.info("Storing data in local files");
+            this.bind(StorageService.class).to(LocalStorageService.class);
+        } else {
+            if (!Strings.isNullOrEmpty(backend) && !"firebase".equalsIgnoreCase(backend.trim())) {
+                logger.error("Environmental variable STORAGE_BACKEND is not one of [firebase, local], using firebase");
+            }
+            initializeFirebase();
+            this.bind(StorageService.class).to(FirebaseService.class);
+        }
+    }
+
+    /**
+     * Connects to the Firebase database with the service account of the FIREBASE_AUTH environmental variable.
+     */
+    public static void initializeFirebase() {
         try {
             logger.info("Loading Firebase auth...");
             FileInputStream file = new FileInputStream(System.getenv("FIREBASE_AUTH"));
@@ -82,6 +121,48 @@ public class MainModule extends ServletModule {
         }
     }
 
+    /**
+     * Provides the HTTP client for all outbound calls to GitHub.
+     * Every caller shares its connection pool and dispatcher,
+     * so requests to api.github.com are multiplexed over a few warm (HTTP/2) connections.
+     *
+     * Responses with status 401 drop the cached session of the rejected OAuth token.
+     */
+    @Provides
+    @Singleton
+    public OkHttpClient provideGitHubHttpClient(Provider<GitHubSessionCache> sessions) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(envInt("GITHUB_HTTP_MAX_REQUESTS", 128));
+        dispatcher.setMaxRequestsPerHost(envInt("GITHUB_HTTP_MAX_REQUESTS_PER_HOST", 32));
+
+        return new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(
+                        envInt("GITHUB_HTTP_MAX_IDLE_CONNECTIONS", 16),
+                        envInt("GITHUB_HTTP_KEEP_ALIVE_SECONDS", 300), TimeUnit.SECONDS))
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectTimeout(envInt("GITHUB_HTTP_CONNECT_TIMEOUT_MS", 5000), TimeUnit.MILLISECONDS)
+                .readTimeout(envInt("GITHUB_HTTP_READ_TIMEOUT_MS", 15000), TimeUnit.MILLISECONDS)
+                .writeTimeout(envInt("GITHUB_HTTP_WRITE_TIMEOUT_MS", 15000), TimeUnit.MILLISECONDS)
+                .addInterceptor(chain -> {
+                    okhttp3.Response response = chain.proceed(chain.request());
+                    if (response.code() == 401) {
+                        sessions.get().invalidateAuthorization(chain.request().header("Authorization"));
+                    }
+                    return response;
+                })
+                .build();
+    }
+
+    /**
+     * Provides the connector that routes the kohsuke GitHub API through the shared HTTP client.
+     */
+    @Provides
+    @Singleton
+    public HttpConnector provideGitHubConnector(OkHttpClient client) {
+        return new OkHttpConnector(client);
+    }
+
     /**
      * Provides the signing algorithm to sign JWT keys destined for authenticating
      * with GitHub Integrations.
@@ -152,6 +233,264 @@ public class MainModule extends ServletModule {
         return INTEGRATION_ID;
     }
 
+    /**
+     * The number of GitHub requests that may wait for the rate limit budget at once.
+     * Further requests that would have to wait fail right away.
+     */
+    @Provides
+    @Named("github.rateLimit.maxQueued")
+    public int provideGitHubMaxQueuedRequests() {
+        return Math.max(1, envInt("GITHUB_MAX_QUEUED_REQUESTS", 10_000));
+    }
+
+    /**
+     * The number of webhook events that are processed in parallel.
+     */
+    @Provides
+    @Named("webhook.workers")
+    public int provideWebhookWorkers() {
+        return Math.max(1, envInt("WEBHOOK_WORKERS", 8));
+    }
+
+    /**
+     * The number of webhook events that may wait for processing before deliveries are rejected.
+     */
+    @Provides
+    @Named("webhook.queue.capacity")
+    public int provideWebhookQueueCapacity() {
+        return Math.max(1, envInt("WEBHOOK_QUEUE_CAPACITY", 10_000));
+    }
+
+    /**
+     * The bearer token that grants access to the metrics endpoint. The endpoint is disabled when it is empty.
+     */
+    @Provides
+    @Named("metrics.token")
+    public String provideMetricsToken() {
+        return Strings.nullToEmpty(System.getenv("METRICS_TOKEN")).trim();
+    }
+
+    /**
+     * The directory of the journal of accepted webhook deliveries.
+     */
+    @Provides
+    @Named("webhook.journal.directory")
+    public String provideWebhookJournalDirectory() {
+        String directory = System.getenv("WEBHOOK_JOURNAL_DIR");
+        return Strings.isNullOrEmpty(directory) ? "webhook-journal" : directory;
+    }
+
+    /**
+     * The size of a segment file of the webhook journal, in bytes.
+     */
+    @Provides
+    @Named("webhook.journal.segmentSize")
+    public int provideWebhookJournalSegmentSize() {
+        return Math.max(1, envInt("WEBHOOK_JOURNAL_SEGMENT_MB", 64)) * 1024 * 1024;
+    }
+
+    /**
+     * The interval at which appends to the webhook journal are forced to disk, in milliseconds.
+     */
+    @Provides
+    @Named("webhook.journal.flushInterval")
+    public int provideWebhookJournalFlushInterval() {
+        return Math.max(1, envInt("WEBHOOK_JOURNAL_FLUSH_MS", 50));
+    }
+
+    /**
+     * The window in which `synchronize` events of one pull request are collapsed into one, in milliseconds.
+     * A window of 0 disables debouncing.
+     */
+    @Provides
+    @Named("webhook.synchronize.window")
+    public int provideWebhookSynchronizeWindow() {
+        return Math.max(0, envInt("WEBHOOK_SYNCHRONIZE_WINDOW_MS", 3000));
+    }
+
+    /**
+     * The largest webhook body that is accepted, in bytes. GitHub caps payloads at 25 MB.
+     */
+    @Provides
+    @Named("webhook.maxPayloadBytes")
+    public int provideWebhookMaxPayloadBytes() {
+        return Math.max(1, envInt("WEBHOOK_MAX_PAYLOAD_KB", 25 * 1024)) * 1024;
+    }
+
+    /**
+     * The number of webhook delivery ids remembered per generation of the deduplication index.
+     */
+    @Provides
+    @Named("webhook.dedup.capacity")
+    public int provideWebhookDedupCapacity() {
+        return Math.max(1, envInt("WEBHOOK_DEDUP_CAPACITY", 65_536));
+    }
+
+    /**
+     * The time a webhook delivery id is remembered at least, in minutes.
+     */
+    @Provides
+    @Named("webhook.dedup.window")
+    public int provideWebhookDedupWindow() {
+        return Math.max(1, envInt("WEBHOOK_DEDUP_WINDOW_MINUTES", 60));
+    }
+
+    /**
+     * The time Firebase writes of concurrent requests are collected to be committed together, in milliseconds.
+     * Each write is committed on its own when this is 0.
+     */
+    @Provides
+    @Named("firebase.coalesce")
+    public int provideFirebaseCoalesce() {
+        return Math.max(0, envInt("FIREBASE_COALESCE_MS", 0));
+    }
+
+    /**
+     * The number of written paths that may await acknowledgement by Firebase before new writes are queued.
+     * At most as many paths may be queued, further writes fail right away.
+     */
+    @Provides
+    @Named("firebase.writes.maxPending")
+    public int provideFirebaseMaxPendingWrites() {
+        return Math.max(1, envInt("FIREBASE_MAX_PENDING_WRITES", 10_000));
+    }
+
+    /**
+     * The time a queued write waits for Firebase to acknowledge earlier writes before it fails, in milliseconds.
+     */
+    @Provides
+    @Named("firebase.writes.pendingTimeout")
+    public int provideFirebasePendingWriteTimeout() {
+        return Math.max(0, envInt("FIREBASE_PENDING_WRITE_TIMEOUT_MS", 10_000));
+    }
+
+    /**
+     * The number of Firebase transactions that may run at the same time.
+     */
+    @Provides
+    @Named("firebase.transactions.concurrency")
+    public int provideFirebaseTransactionConcurrency() {
+        return Math.max(1, envInt("FIREBASE_TRANSACTION_CONCURRENCY", 16));
+    }
+
+    /**
+     * The number of pull requests of which the stored data is mirrored in memory.
+     */
+    @Provides
+    @Named("storage.mirror.capacity")
+    public int provideStorageMirrorCapacity() {
+        return Math.max(1, envInt("STORAGE_MIRROR_CAPACITY", 1000));
+    }
+
+    /**
+     * The directory of the data of the local storage backend.
+     */
+    @Provides
+    @Named("storage.local.directory")
+    public String provideLocalStorageDirectory() {
+        String directory = System.getenv("LOCAL_STORAGE_DIR");
+        return Strings.isNullOrEmpty(directory) ? "local-storage" : directory;
+    }
+
+    /**
+     * The size of a log file of the local storage backend, in bytes.
+     * The log is compacted into a new file when it is full.
+     */
+    @Provides
+    @Named("storage.local.logSize")
+    public int provideLocalStorageLogSize() {
+        return Math.min(1024, Math.max(1, envInt("LOCAL_STORAGE_LOG_MB", 64))) * 1024 * 1024;
+    }
+
+    /**
+     * The interval at which commits to the local storage backend are forced to disk, in milliseconds.
+     */
+    @Provides
+    @Named("storage.local.flushInterval")
+    public int provideLocalStorageFlushInterval() {
+        return Math.max(1, envInt("LOCAL_STORAGE_FLUSH_MS", 50));
+    }
+
+    /**
+     * The number of tracker events that are buffered before they are stored.
+     */
+    @Provides
+    @Named("tracker.buffer.capacity")
+    public int provideTrackerBufferCapacity() {
+        return Math.min(1 << 24, Math.max(2, envInt("TRACKER_BUFFER_CAPACITY", 16_384)));
+    }
+
+    /**
+     * The largest number of tracker events that is stored in one update.
+     */
+    @Provides
+    @Named("tracker.batch.size")
+    public int provideTrackerBatchSize() {
+        return Math.max(1, envInt("TRACKER_BATCH_SIZE", 500));
+    }
+
+    /**
+     * The time between two flushes of the tracker events that are buffered, in milliseconds.
+     */
+    @Provides
+    @Named("tracker.flush.interval")
+    public int provideTrackerFlushInterval() {
+        return Math.max(1, envInt("TRACKER_FLUSH_MS", 250));
+    }
+
+    /**
+     * What happens to tracker events that arrive while the buffer is full, `DROP_NEWEST` by default.
+     */
+    @Provides
+    @Named("tracker.overflow")
+    public TrackerPipeline.OverflowPolicy provideTrackerOverflowPolicy() {
+        String value = System.getenv("TRACKER_OVERFLOW");
+        if (Strings.isNullOrEmpty(value)) {
+            return TrackerPipeline.OverflowPolicy.DROP_NEWEST;
+        }
+        try {
+            return TrackerPipeline.OverflowPolicy.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.error("Environmental variable TRACKER_OVERFLOW is not one of "
+                    + Arrays.toString(TrackerPipeline.OverflowPolicy.values()) + ", using DROP_NEWEST");
+            return TrackerPipeline.OverflowPolicy.DROP_NEWEST;
+        }
+    }
+
+    /**
+     * The length of the intervals in which tracker events are rolled up, in minutes.
+     */
+    @Provides
+    @Named("tracker.rollup.interval")
+    public int provideTrackerRollupInterval() {
+        return Math.max(1, envInt("TRACKER_ROLLUP_MINUTES", 5));
+    }
+
+    /**
+     * The time between two writes of the tracker rollups to storage, in seconds.
+     */
+    @Provides
+    @Named("tracker.rollup.flush.interval")
+    public int provideTrackerRollupFlushInterval() {
+        return Math.max(1, envInt("TRACKER_ROLLUP_FLUSH_SECONDS", 60));
+    }
+
+    /**
+     * Reads an optional numeric setting from the environment.
+     */
+    private static int envInt(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if (Strings.isNullOrEmpty(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.error("Environmental variable " + name + " is not a number, using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
     /**
      * Method to declare Named key "github.user" to obtain the current GitHub instance
      * @throws Exception if key was not set
@@ -163,6 +502,28 @@ public class MainModule extends ServletModule {
         throw new NotAuthorizedException("user id must be manually seeded");
     }
 
+    /**
+     * Method to declare Named key "github.user.session" to obtain the validated session of the current user
+     * @throws Exception if key was not set
+     */
+    @Provides
+    @Named("github.user.session")
+    @RequestScoped
+    public GitHubSession provideGitHubSession() {
+        throw new NotAuthorizedException("user session must be manually seeded");
+    }
+
+    /**
+     * Method to declare Named key "github.webhook.payload" to obtain the parsed payload of the current webhook call
+     * @throws Exception if key was not set
+     */
+    @Provides
+    @Named("github.webhook.payload")
+    @RequestScoped
+    public WebhookPayload provideWebhookPayload() {
+        throw new NotAuthorizedException("Webhook payload must be seeded by verifying the webhook call");
+    }
+
     /**
      * Method to declare Named key "github.installation.token" to obtain the current GitHub Installation token
      * @throws Exception if key was not set
@@ -0,0 +1,12 @@
+package previewcode.backend.api.exceptionmapper;
+
+/**
+ * Thrown when a write to the storage is rejected because the storage cannot keep up.
+ * The client may retry the request later.
+ */
+public class StorageUnavailableException extends RuntimeException {
+
+    public StorageUnavailableException(String message) {
+        super(message);
+    }
+}
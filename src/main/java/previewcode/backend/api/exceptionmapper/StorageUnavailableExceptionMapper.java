@@ -0,0 +1,21 @@
+package previewcode.backend.api.exceptionmapper;
+
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * This ExceptionMapper maps {@link StorageUnavailableException StorageUnavailableExceptions}
+ * to `503 Service Unavailable`, so the client knows it may retry.
+ */
+@Provider
+public class StorageUnavailableExceptionMapper extends
+        AbstractExceptionMapper<StorageUnavailableException> {
+
+    @Override
+    public Response.Status getStatusCode(StorageUnavailableException e) {
+        return SERVICE_UNAVAILABLE;
+    }
+
+}
@@ -1,19 +1,28 @@
 package previewcode.backend.api.v1;
 
 import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 
+import previewcode.backend.DTO.ApprovalSummary;
 import previewcode.backend.DTO.Approve;
-import previewcode.backend.services.FirebaseService;
+import previewcode.backend.services.ApprovalService;
 
+import com.google.common.base.Strings;
 import com.google.inject.Inject;
-import previewcode.backend.services.GithubService;
-import org.kohsuke.github.GHMyself;
+import previewcode.backend.services.AsyncGithubService;
+import previewcode.backend.services.GitHubSession;
+import previewcode.backend.services.PullRequestMirror;
 
-import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * API endpoint for approving hunks
@@ -22,15 +31,23 @@ import java.io.IOException;
 @Path("{owner}/{name}/pulls/{number}/approve")
 public class AssigneesAPI {
 
+    /**
+     * The largest number of approvals in one request
+     */
+    private static final int MAX_APPROVALS = 5000;
+
+    @Inject
+    private ApprovalService approvalService;
+
     @Inject
-    private FirebaseService firebaseService;
+    private AsyncGithubService githubService;
 
     @Inject
-    private GithubService githubService;
+    private PullRequestMirror mirror;
 
     /**
      * Creates a pull request
-     * 
+     *
      * @param owner
      *            The owner of the repository on which the pull request is created
      * @param name
@@ -39,19 +56,92 @@ public class AssigneesAPI {
      *            The body of the pull request
      * @param number
      *            The number of the pull request
-     * @return The number of the newly made pull request
+     * @return The approval once it is stored
      */
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
-    public Approve setApprove(@PathParam("owner") String owner,
-                              @PathParam("name") String name,
-                              @PathParam("number") String number,
-                              Approve body) throws IOException {
-        GHMyself user = githubService.getLoggedInUser();
-        if (body.githubLogin != user.getId()) {
-            throw new IllegalArgumentException("Can not set approve status of other user");
+    @Produces(MediaType.APPLICATION_JSON)
+    public void setApprove(@Suspended AsyncResponse response,
+                           @PathParam("owner") String owner,
+                           @PathParam("name") String name,
+                           @PathParam("number") String number,
+                           Approve body) {
+        int user = this.checkApprovals(Collections.singletonList(body));
+        CompletableFuture<Approve> stored = approvalService
+                .setApproved(owner, name, number, user, Collections.singletonList(body)).thenApply(done -> body);
+        AsyncResponses.resume(response, stored);
+    }
+
+    /**
+     * Sets the approval status of many hunks at once, e.g. of a whole file or group
+     *
+     * @param owner
+     *            The owner of the repository where the pull request is located
+     * @param name
+     *            The name of the repository where the pull request is located
+     * @param number
+     *            The number of the pull request
+     * @param body
+     *            The approvals of the logged in user, applied in order
+     * @return The approvals once they are stored
+     */
+    @POST
+    @Path("bulk")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public void setApproves(@Suspended AsyncResponse response,
+                            @PathParam("owner") String owner,
+                            @PathParam("name") String name,
+                            @PathParam("number") String number,
+                            List<Approve> body) {
+        if (body == null || body.isEmpty() || body.size() > MAX_APPROVALS) {
+            throw new IllegalArgumentException("Expected between 1 and " + MAX_APPROVALS + " approvals");
+        }
+        int user = this.checkApprovals(body);
+        CompletableFuture<List<Approve>> stored =
+                approvalService.setApproved(owner, name, number, user, body).thenApply(done -> body);
+        AsyncResponses.resume(response, stored);
+    }
+
+    /**
+     * Gets the number of hunks every reviewer approved, disapproved or has not reviewed yet
+     *
+     * @param owner
+     *            The owner of the repository where the pull request is located
+     * @param name
+     *            The name of the repository where the pull request is located
+     * @param number
+     *            The number of the pull request
+     * @return The approval summary of the pull request
+     */
+    @GET
+    @Path("summary")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void getSummary(@Suspended AsyncResponse response,
+                           @PathParam("owner") String owner,
+                           @PathParam("name") String name,
+                           @PathParam("number") Integer number) {
+        CompletableFuture<ApprovalSummary> summary = githubService.checkAccess(owner, name)
+                .thenCompose(access -> mirror.get(owner, name, number))
+                .thenApply(pull -> pull.approvalSummary);
+        AsyncResponses.resume(response, summary);
+    }
+
+    /**
+     * Checks that all approvals are of hunks and belong to the logged in user
+     *
+     * @return The id of the logged in user
+     */
+    private int checkApprovals(List<Approve> approvals) {
+        GitHubSession user = githubService.getLoggedInUser();
+        for (Approve approve : approvals) {
+            if (approve == null || Strings.isNullOrEmpty(approve.hunkId)) {
+                throw new IllegalArgumentException("Approval has no hunk");
+            }
+            if (approve.githubLogin != user.id) {
+                throw new IllegalArgumentException("Can not set approve status of other user");
+            }
         }
-        firebaseService.setApproved(owner, name, number, body);
-        return body;
+        return user.id;
     }
 }
@@ -0,0 +1,48 @@
+package previewcode.backend.api.v1;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resumes suspended responses from the completion of a future,
+ * so API endpoints do not park their request thread while waiting for GitHub.
+ */
+class AsyncResponses {
+
+    /**
+     * The time GitHub gets to answer before a suspended request is timed out.
+     */
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private AsyncResponses() {
+    }
+
+    /**
+     * Resumes the response with the result of the future once it completes.
+     * A `null` result resumes with `204 No Content`, a failure is handed to the exception mappers.
+     */
+    static void resume(AsyncResponse response, CompletableFuture<?> future) {
+        response.setTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        future.whenComplete((result, error) -> {
+            if (error != null) {
+                response.resume(unwrap(error));
+            } else if (result == null) {
+                response.resume(Response.noContent().build());
+            } else {
+                response.resume(result);
+            }
+        });
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException)
+                && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+}
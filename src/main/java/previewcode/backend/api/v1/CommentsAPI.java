@@ -4,15 +4,15 @@ import javax.ws.rs.Consumes;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 
-import org.kohsuke.github.GHIssueComment;
-
 import previewcode.backend.DTO.PRComment;
 import previewcode.backend.DTO.PRGroupComment;
 import previewcode.backend.DTO.PRLineComment;
-import previewcode.backend.services.FirebaseService;
-import previewcode.backend.services.GithubService;
+import previewcode.backend.services.AsyncGithubService;
+import previewcode.backend.services.StorageService;
 
 import com.google.inject.Inject;
 
@@ -24,10 +24,10 @@ import com.google.inject.Inject;
 public class CommentsAPI {
 
     @Inject
-    private GithubService commentsService;
+    private AsyncGithubService commentsService;
     
     @Inject
-    private FirebaseService firebaseService;
+    private StorageService storageService;
 
     /**
      * Sets the standard pull request comments
@@ -44,10 +44,12 @@ public class CommentsAPI {
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
     @Path("pr")
-    public void postPRComment(@PathParam("owner") String owner,
+    public void postPRComment(@Suspended AsyncResponse response,
+            @PathParam("owner") String owner,
             @PathParam("name") String name, @PathParam("number") int number,
             PRComment comment) {
-        commentsService.postComment(owner, name, number, comment);
+        AsyncResponses.resume(response,
+                commentsService.postComment(owner, name, number, comment).thenApply(posted -> null));
     }
 
     /**
@@ -65,12 +67,13 @@ public class CommentsAPI {
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
     @Path("group")
-    public void postGroupComment(@PathParam("owner") String owner,
+    public void postGroupComment(@Suspended AsyncResponse response,
+            @PathParam("owner") String owner,
             @PathParam("name") String name, @PathParam("number") int number,
             PRGroupComment comment) {
-        GHIssueComment newComment = commentsService.postComment(owner, name, number, comment);
-        firebaseService.setComments(owner, name, number, newComment.getId(),
-                comment.groupID);
+        AsyncResponses.resume(response, commentsService.postComment(owner, name, number, comment)
+                .thenCompose(newComment -> storageService.setComments(owner, name, number, newComment.id,
+                        comment.groupID)));
     }
 
     /**
@@ -88,9 +91,11 @@ public class CommentsAPI {
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
     @Path("line")
-    public void postLineComment(@PathParam("owner") String owner,
-                                              @PathParam("name") String name, @PathParam("number") int number,
-                                              PRLineComment comment) {
-        commentsService.postLineComment(owner, name, number, comment);
+    public void postLineComment(@Suspended AsyncResponse response,
+                                @PathParam("owner") String owner,
+                                @PathParam("name") String name, @PathParam("number") int number,
+                                PRLineComment comment) {
+        AsyncResponses.resume(response,
+                commentsService.postLineComment(owner, name, number, comment).thenApply(posted -> null));
     }
 }
@@ -0,0 +1,58 @@
+package previewcode.backend.api.v1;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import previewcode.backend.services.MetricsService;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.NotAuthorizedException;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+
+/**
+ * API endpoint for the internal metrics of the backend.
+ *
+ * The metrics name users and installations, so they are only served to requests that carry the token
+ * configured in `METRICS_TOKEN` as a bearer token. Without a configured token the endpoint does not exist.
+ */
+@Path("metrics/")
+public class MetricsAPI {
+
+    private static final String BEARER = "Bearer ";
+
+    @Inject
+    private MetricsService metricsService;
+
+    @Inject
+    @Named("metrics.token")
+    private String token;
+
+    /**
+     * Gets the current value of all registered metrics
+     *
+     * @param authorization
+     *            The `Authorization` header, which must hold the metrics token as a bearer token
+     * @return The metrics, sorted by name
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> getMetrics(@HeaderParam(HttpHeaders.AUTHORIZATION) String authorization) {
+        if (token.isEmpty()) {
+            throw new NotFoundException();
+        }
+        byte[] expected = (BEARER + token).getBytes(StandardCharsets.UTF_8);
+        byte[] actual = authorization == null ? new byte[0] : authorization.getBytes(StandardCharsets.UTF_8);
+        // Compared in constant time, so the token cannot be guessed from response times
+        if (!MessageDigest.isEqual(expected, actual)) {
+            throw new NotAuthorizedException(BEARER.trim());
+        }
+        return metricsService.snapshot();
+    }
+}
@@ -1,36 +1,45 @@
 package previewcode.backend.api.v1;
 
 import com.google.inject.Inject;
-import org.jboss.resteasy.annotations.Suspend;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import previewcode.backend.DTO.GitHubPullRequest;
 import previewcode.backend.DTO.Ordering;
 import previewcode.backend.DTO.OrderingStatus;
 import previewcode.backend.DTO.PRbody;
-import previewcode.backend.DTO.PrNumber;
 import previewcode.backend.DTO.PullRequestIdentifier;
 import previewcode.backend.DTO.StatusBody;
-import previewcode.backend.services.FirebaseService;
-import previewcode.backend.services.GithubService;
+import previewcode.backend.services.AsyncGithubService;
+import previewcode.backend.services.OrderingService;
+import previewcode.backend.services.StorageService;
+import previewcode.backend.services.PullRequestMirror;
 
 import javax.ws.rs.*;
 import javax.ws.rs.container.AsyncResponse;
 import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.TimeUnit;
 
 @Path("{owner}/{name}/pulls/")
 public class PullRequestAPI {
 
+    private static final Logger logger = LoggerFactory.getLogger(PullRequestAPI.class);
+
+    @Inject
+    private AsyncGithubService githubService;
+
+    @Inject
+    private StorageService storageService;
+
     @Inject
-    private GithubService githubService;
+    private PullRequestMirror mirror;
 
     @Inject
-    private FirebaseService firebaseService;
+    private OrderingService orderingService;
 
 
     /**
@@ -46,18 +55,22 @@ public class PullRequestAPI {
      */
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
-    public PrNumber createPR(@PathParam("owner") String owner,
-                             @PathParam("name") String name, PRbody body) {
+    public void createPR(@Suspended AsyncResponse response,
+                         @PathParam("owner") String owner,
+                         @PathParam("name") String name, PRbody body) {
         if (body.title.isEmpty() || body.description.isEmpty()) {
             throw new IllegalArgumentException("Title or body is empty");
         }
-        PrNumber number = githubService.createPullRequest(owner, name, body);
-        firebaseService.setOrdering(new PullRequestIdentifier(owner, name, number.number), body.ordering);
-        StatusBody statusBody = new StatusBody();
-        statusBody.status = "No reviewer assigned";
-        firebaseService.setStatus(owner, name,
-                Integer.toString(number.number), statusBody.status);
-        return number;
+        AsyncResponses.resume(response, githubService.createPullRequest(owner, name, body).thenCompose(number -> {
+            StatusBody statusBody = new StatusBody();
+            statusBody.status = "No reviewer assigned";
+            // The ordering and status of a new pull request appear together
+            return storageService.batch()
+                    .setOrdering(new PullRequestIdentifier(owner, name, number.number), body.ordering)
+                    .setStatus(owner, name, Integer.toString(number.number), statusBody.status)
+                    .commit()
+                    .thenApply(stored -> number);
+        }));
     }
 
 
@@ -80,33 +93,95 @@ public class PullRequestAPI {
             @Suspended AsyncResponse response,
             @PathParam("owner") String owner,
             @PathParam("name") String name,
-            @PathParam("number") Integer number, List<Ordering> body) throws IOException {
-        response.setTimeout(10, TimeUnit.SECONDS);
-
-        if(githubService.isOwner(owner, name,  number)) {
-            firebaseService.setOrdering(new PullRequestIdentifier(owner, name, number), body);
-            updateOrderingStatus(owner, name, number);
-            response.resume(Response.ok().build());
-        } else {
-            response.resume(new NotAuthorizedException("Only the owner of a pull request can edit it's ordering"));
-        }
+            @PathParam("number") Integer number, List<Ordering> body) {
+        PullRequestIdentifier id = new PullRequestIdentifier(owner, name, number);
+        // Usually answered from the cached author, so the ordering is stored without waiting for GitHub
+        CompletableFuture<Boolean> isOwner = githubService.isOwner(owner, name, number);
+
+        // Shares its call with the ownership check when the author is not cached
+        CompletableFuture<GitHubPullRequest> pull = githubService.fetchPullRequest(id);
+        // The status is fetched while ownership is checked and the ordering is stored
+        CompletableFuture<Optional<OrderingStatus>> status = pull.thenCompose(githubService::getOrderingStatus);
+
+        AsyncResponses.resume(response, isOwner.thenCompose(owns -> {
+            if (!owns) {
+                throw new NotAuthorizedException("Only the owner of a pull request can edit it's ordering");
+            }
+            return orderingService.setOrdering(id, body).thenCompose(stored -> pull);
+        }).thenCompose(pullRequest -> status.thenCompose(current -> {
+            CompletableFuture<Void> statusUpdate = updateOrderingStatus(pullRequest, current);
+            if (statusUpdate.isCompletedExceptionally()) {
+                // Refused before it was queued, e.g. when too many requests wait for the rate limit.
+                // The ordering has been stored by now, so the user can simply post it again.
+                return statusUpdate.thenApply(done -> Response.ok().build());
+            }
+            // The status update may be queued behind the rate limit, so the user does not wait for it
+            statusUpdate.whenComplete((updated, error) -> {
+                if (error != null) {
+                    logger.warn("Failed to update the ordering status of " + pullRequest.url, error);
+                }
+            });
+            return CompletableFuture.completedFuture(Response.ok().build());
+        })));
     }
 
     /**
-     * Get the current ordering status from GitHub and change it to `success`
-     * if the status is present.
-     * @throws IOException when a call to GitHub fails.
+     * Gets the ordering
+     *
+     * @param owner
+     *            The owner of the repository where the pull request was made
+     * @param name
+     *            The name of the repository where the pull request was made
+     * @param number
+     *            The number of the pull request
+     * @return The groups of the ordering, empty if the pull request has no ordering
      */
-    private void updateOrderingStatus(String owner, String name, Integer number) throws IOException {
-        PullRequestIdentifier id = new PullRequestIdentifier(owner, name, number);
-        GitHubPullRequest pull = githubService.fetchPullRequest(id);
-        githubService.getOrderingStatus(pull)
+    @GET
+    @Path("{number}/ordering")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void getOrdering(
+            @Suspended AsyncResponse response,
+            @PathParam("owner") String owner,
+            @PathParam("name") String name,
+            @PathParam("number") Integer number) {
+        AsyncResponses.resume(response, githubService.checkAccess(owner, name)
+                .thenCompose(access -> mirror.get(owner, name, number))
+                .thenApply(pull -> pull.ordering));
+    }
+
+    /**
+     * Gets the approvals
+     *
+     * @param owner
+     *            The owner of the repository where the pull request was made
+     * @param name
+     *            The name of the repository where the pull request was made
+     * @param number
+     *            The number of the pull request
+     * @return The approval status of every hunk by the id of the hunk and the GitHub user
+     */
+    @GET
+    @Path("{number}/approvals")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void getApprovals(
+            @Suspended AsyncResponse response,
+            @PathParam("owner") String owner,
+            @PathParam("name") String name,
+            @PathParam("number") Integer number) {
+        CompletableFuture<Map<String, Map<String, String>>> approvals = githubService.checkAccess(owner, name)
+                .thenCompose(access -> mirror.get(owner, name, number))
+                .thenApply(pull -> pull.approvals);
+        AsyncResponses.resume(response, approvals);
+    }
+
+    /**
+     * Change the current ordering status to `success` if the status is present and pending.
+     */
+    private CompletableFuture<Void> updateOrderingStatus(GitHubPullRequest pull, Optional<OrderingStatus> current) {
+        return current
                 .filter(OrderingStatus::isPending)
                 .map(OrderingStatus::complete)
-                .ifPresent(status -> { try {
-                    githubService.setOrderingStatus(pull, status);
-                } catch (IOException e) {
-                    throw new UncheckedIOException(e.getMessage(), e); }
-                });
+                .map(status -> githubService.setOrderingStatus(pull, status))
+                .orElse(CompletableFuture.completedFuture(null));
     }
 }
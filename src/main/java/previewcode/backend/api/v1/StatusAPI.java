@@ -1,13 +1,19 @@
 package previewcode.backend.api.v1;
 
 import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 
 import previewcode.backend.DTO.StatusBody;
-import previewcode.backend.services.FirebaseService;
+import previewcode.backend.services.AsyncGithubService;
+import previewcode.backend.services.StorageService;
+import previewcode.backend.services.PullRequestMirror;
 
 import com.google.inject.Inject;
 
@@ -18,7 +24,42 @@ import com.google.inject.Inject;
 public class StatusAPI {
 
     @Inject
-    private FirebaseService firebaseService;
+    private StorageService storageService;
+
+    @Inject
+    private PullRequestMirror mirror;
+
+    @Inject
+    private AsyncGithubService githubService;
+
+    /**
+     * Gets the status of a pull request
+     *
+     * @param owner
+     *            The owner of the repository where the pull request is located
+     * @param name
+     *            The owner of the repository where the pull request is located
+     * @param number
+     *            The number of the pull request
+     * @return The body of the status, or no content if the pull request has no status
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public void getStatus(@Suspended AsyncResponse response,
+            @PathParam("owner") String owner,
+            @PathParam("name") String name, @PathParam("branch") Integer number) {
+        // Statuses are stored under the lowercase repository, see setStatus
+        AsyncResponses.resume(response, githubService.checkAccess(owner, name)
+                .thenCompose(access -> mirror.get(owner.toLowerCase(), name.toLowerCase(), number))
+                .thenApply(pull -> {
+                    if (pull.status == null) {
+                        return null;
+                    }
+                    StatusBody status = new StatusBody();
+                    status.status = pull.status;
+                    return status;
+                }));
+    }
 
     /**
      * Sets the status of a pull request
@@ -31,16 +72,16 @@ public class StatusAPI {
      *            The number of the pull request
      * @param body
      *            The body in which the status is saved
-     * @return The body of the status
+     * @return The body of the status, once it is stored
      */
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
-    public StatusBody setStatus(@PathParam("owner") String owner,
+    @Produces(MediaType.APPLICATION_JSON)
+    public void setStatus(@Suspended AsyncResponse response,
+            @PathParam("owner") String owner,
             @PathParam("name") String name, @PathParam("branch") String number,
             StatusBody body) {
-        firebaseService.setStatus(owner.toLowerCase(), name.toLowerCase(),
-                number, body.status);
-
-        return body;
+        AsyncResponses.resume(response, storageService.setStatus(owner.toLowerCase(), name.toLowerCase(),
+                number, body.status).thenApply(stored -> body));
     }
 }
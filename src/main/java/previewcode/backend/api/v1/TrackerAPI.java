@@ -2,12 +2,22 @@ package previewcode.backend.api.v1;
 
 import com.google.inject.Inject;
 import previewcode.backend.DTO.Track;
-import previewcode.backend.services.FirebaseService;
+import previewcode.backend.services.TrackerPipeline;
+import previewcode.backend.services.TrackerRollup;
 
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 /**
  * API endpoint for the status of a pull request
@@ -15,19 +25,55 @@ import javax.ws.rs.core.MediaType;
 @Path("tracker/")
 public class TrackerAPI {
 
+    private static final int MAX_LIMIT = 1000;
+    private static final Pattern TIME = Pattern.compile("[0-9]{1,18}");
+
+    @Inject
+    private TrackerPipeline trackerPipeline;
+
     @Inject
-    private FirebaseService firebaseService;
+    private TrackerRollup trackerRollup;
 
     /**
-     * Adds a tracker event to firebase
+     * Adds a tracker event to firebase. The event is stored with the next batch of events.
      *
      * @param body
-     *            The body in which the status is saved
-     * @return The body of the status
+     *            The tracker event
+     * @return Accepted, since the event is not stored yet
      */
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
-    public void addTracker(Track body) {
-        firebaseService.addTracker(body);
+    public Response addTracker(Track body) {
+        // The time is the key of the event in storage, so it must not contain path or key separators
+        if (body == null || body.time == null || !TIME.matcher(body.time).matches()) {
+            throw new IllegalArgumentException("Tracker event has no time in milliseconds since the epoch");
+        }
+        trackerPipeline.submit(body);
+        return Response.accepted().build();
+    }
+
+    /**
+     * Reports how reviewers navigated within a time range
+     *
+     * @param from
+     *            The start of the time range in milliseconds since the epoch, a day before `to` by default
+     * @param to
+     *            The end of the time range in milliseconds since the epoch, now by default
+     * @param limit
+     *            The number of transitions and paths to report
+     * @return The most frequent transitions and the time spent on the most visited paths
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public void getRollup(@Suspended AsyncResponse response,
+                          @QueryParam("from") Long from,
+                          @QueryParam("to") Long to,
+                          @QueryParam("limit") @DefaultValue("20") int limit) {
+        long end = to != null ? to : System.currentTimeMillis();
+        long start = from != null ? from : end - TimeUnit.DAYS.toMillis(1);
+        if (start > end || limit < 1 || limit > MAX_LIMIT) {
+            throw new IllegalArgumentException("Invalid time range or limit");
+        }
+        AsyncResponses.resume(response, trackerRollup.query(start, end, limit));
     }
 }
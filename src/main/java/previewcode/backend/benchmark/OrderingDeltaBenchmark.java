@@ -0,0 +1,156 @@
+package previewcode.backend.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import previewcode.backend.DTO.Ordering;
+import previewcode.backend.DTO.PullRequestIdentifier;
+import previewcode.backend.DTO.TitleDescription;
+import previewcode.backend.services.OrderingService;
+import previewcode.backend.services.StorageService;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Compares the payload of ordering updates that rewrite every group with that of updates
+ * that only write the changed groups, as {@link OrderingService} does.
+ *
+ * Each round applies a typical edit of an author to a generated ordering and measures the JSON
+ * of the multi-path update that stores it, both ways.
+ *
+ * Usage: `OrderingDeltaBenchmark [groups] [hunks] [rounds]`, e.g. `OrderingDeltaBenchmark 40 800 1000`.
+ */
+public class OrderingDeltaBenchmark {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final PullRequestIdentifier PULL = new PullRequestIdentifier("benchmark", "ordering", 1);
+
+    public static void main(String[] args) throws Exception {
+        int groupCount = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        int hunkCount = args.length > 1 ? Integer.parseInt(args[1]) : 800;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        Random random = new Random(42);
+
+        String[] edits = {"move hunk", "rename group", "swap groups", "remove group"};
+        long[] fullBytes = new long[edits.length];
+        long[] deltaBytes = new long[edits.length];
+        long[] hashNanos = new long[edits.length];
+        int[] counts = new int[edits.length];
+
+        List<Ordering> ordering = generate(groupCount, hunkCount);
+        for (int round = 0; round < rounds; round++) {
+            if (ordering.size() < 2) {
+                ordering = generate(groupCount, hunkCount);
+            }
+            int edit = random.nextInt(edits.length);
+            List<Ordering> edited = edit(ordering, edit, random);
+
+            fullBytes[edit] += payload(batch -> batch.setOrdering(PULL, edited));
+            long start = System.nanoTime();
+            Map<Integer, Ordering> changed = OrderingService.changedGroups(OrderingService.hashes(ordering), edited);
+            hashNanos[edit] += System.nanoTime() - start;
+            deltaBytes[edit] += payload(batch -> batch.updateOrdering(PULL, System.currentTimeMillis(), changed));
+            counts[edit]++;
+            ordering = edited;
+        }
+
+        System.out.println(String.format(Locale.ROOT, "%d groups, %d hunks, %d rounds", groupCount, hunkCount, rounds));
+        for (int i = 0; i < edits.length; i++) {
+            if (counts[i] == 0) {
+                continue;
+            }
+            System.out.println(String.format(Locale.ROOT,
+                    "%-13s full %8.0f bytes, delta %7.0f bytes, %5.1f%% smaller, diff %.3f ms",
+                    edits[i],
+                    fullBytes[i] / (double) counts[i],
+                    deltaBytes[i] / (double) counts[i],
+                    100.0 * (1 - deltaBytes[i] / (double) fullBytes[i]),
+                    hashNanos[i] / 1e6 / counts[i]));
+        }
+    }
+
+    /**
+     * Applies an edit to a copy of the ordering.
+     */
+    private static List<Ordering> edit(List<Ordering> ordering, int edit, Random random) {
+        List<Ordering> edited = new ArrayList<>();
+        for (Ordering group : ordering) {
+            edited.add(copy(group));
+        }
+        int from = random.nextInt(edited.size());
+        int to = random.nextInt(edited.size());
+        switch (edit) {
+            case 0:
+                if (from != to && !edited.get(from).diff.isEmpty()) {
+                    String hunk = edited.get(from).diff.remove(random.nextInt(edited.get(from).diff.size()));
+                    edited.get(to).diff.add(hunk);
+                }
+                break;
+            case 1:
+                edited.get(from).info.title = "Renamed group " + random.nextInt();
+                break;
+            case 2:
+                Ordering swapped = edited.get(from);
+                edited.set(from, edited.get(to));
+                edited.set(to, swapped);
+                break;
+            default:
+                Ordering removed = edited.remove(from);
+                edited.get(to % edited.size()).diff.addAll(removed.diff);
+                break;
+        }
+        return edited;
+    }
+
+    private static List<Ordering> generate(int groupCount, int hunkCount) {
+        List<Ordering> groups = new ArrayList<>();
+        for (int g = 0; g < groupCount; g++) {
+            Ordering group = new Ordering();
+            group.id = "group-" + g;
+            group.diff = new ArrayList<>();
+            group.info = new TitleDescription();
+            group.info.title = "Group " + g;
+            group.info.description = "The changes to part " + g + " of the pull request, with some explanation";
+            groups.add(group);
+        }
+        for (int h = 0; h < hunkCount; h++) {
+            groups.get(h % groupCount).diff.add(String.format("%040x", (long) h * 2654435761L));
+        }
+        return groups;
+    }
+
+    private static Ordering copy(Ordering group) {
+        Ordering copy = new Ordering();
+        copy.id = group.id;
+        copy.diff = new ArrayList<>(group.diff);
+        copy.info = new TitleDescription();
+        copy.info.title = group.info.title;
+        copy.info.description = group.info.description;
+        return copy;
+    }
+
+    /**
+     * The size of the JSON of the multi-path update that a batch would commit
+     */
+    private static long payload(Consumer<StorageService.Batch> writes) throws Exception {
+        Map<String, Object> updates = new LinkedHashMap<>();
+        writes.accept(new StorageService.Batch() {
+            @Override
+            public StorageService.Batch set(String path, Object value) {
+                updates.put(path, value);
+                return this;
+            }
+
+            @Override
+            public CompletableFuture<Void> commit() {
+                return CompletableFuture.completedFuture(null);
+            }
+        });
+        return mapper.writeValueAsBytes(updates).length;
+    }
+}
@@ -0,0 +1,174 @@
+package previewcode.backend.benchmark;
+
+import previewcode.backend.DTO.Approve;
+import previewcode.backend.DTO.Ordering;
+import previewcode.backend.DTO.PullRequestIdentifier;
+import previewcode.backend.DTO.TitleDescription;
+import previewcode.backend.DTO.Track;
+import previewcode.backend.MainModule;
+import previewcode.backend.services.FirebaseConnectionMonitor;
+import previewcode.backend.services.FirebaseService;
+import previewcode.backend.services.FirebaseTransactions;
+import previewcode.backend.services.FirebaseWriter;
+import previewcode.backend.services.LocalStorageService;
+import previewcode.backend.services.MetricsService;
+import previewcode.backend.services.ShutdownRegistry;
+import previewcode.backend.services.StorageService;
+
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the storage backends under the write mix of the API: statuses, approvals, orderings and tracking.
+ * Every operation waits for the acknowledgement of the backend, but the backends acknowledge at different points.
+ * Firebase acknowledges a write once its servers have it. The local backend acknowledges once the write is in its
+ * memory-mapped log, which survives a crash of the process, and forces the log to disk in the background.
+ * Its latencies therefore do not include the disk, the report states this next to the numbers.
+ *
+ * Usage: `StorageBenchmark [backends] [operations] [threads]`, e.g. `StorageBenchmark local,firebase 20000 16`.
+ * The firebase backend needs the FIREBASE_AUTH environmental variable and writes under `benchmark/`.
+ */
+public class StorageBenchmark {
+
+    private static final int PULL_REQUESTS = 200;
+
+    public static void main(String[] args) throws Exception {
+        List<String> backends = Arrays.asList((args.length > 0 ? args[0] : "local").split(","));
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+        for (String backend : backends) {
+            ShutdownRegistry shutdown = new ShutdownRegistry();
+            StorageService storage = create(backend.trim(), shutdown);
+
+            // Warm up, so the comparison does not include class loading and connection setup
+            run(storage, operations / 10, threads);
+            long[] latencies = new long[operations];
+            long start = System.nanoTime();
+            run(storage, latencies, threads);
+            long elapsed = System.nanoTime() - start;
+            report(backend.trim(), latencies, elapsed, threads);
+            System.out.println("         acknowledged " + acknowledgement(backend.trim()));
+
+            shutdown.shutdown(Duration.ofSeconds(20));
+        }
+        System.exit(0);
+    }
+
+    private static StorageService create(String backend, ShutdownRegistry shutdown) throws Exception {
+        MetricsService metrics = new MetricsService();
+        switch (backend) {
+            case "local":
+                String directory = Files.createTempDirectory("storage-benchmark").toString();
+                return new LocalStorageService(directory, 64 * 1024 * 1024, 50, metrics, shutdown);
+            case "firebase":
+                MainModule.initializeFirebase();
+                FirebaseConnectionMonitor connection = new FirebaseConnectionMonitor(metrics);
+                connection.whenConnected().get(30, TimeUnit.SECONDS);
+                return new FirebaseService(new FirebaseWriter(0, 10_000, 10_000, metrics, shutdown),
+                        new FirebaseTransactions(connection, 16, metrics), metrics);
+            default:
+                throw new IllegalArgumentException("Unknown storage backend: " + backend);
+        }
+    }
+
+    private static void run(StorageService storage, int operations, int threads) throws Exception {
+        run(storage, new long[operations], threads);
+    }
+
+    private static void run(StorageService storage, long[] latencies, int threads) throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int first = t;
+            done.add(workers.submit(() -> {
+                for (int i = first; i < latencies.length; i += threads) {
+                    long start = System.nanoTime();
+                    operation(storage, i).join();
+                    latencies[i] = System.nanoTime() - start;
+                }
+                return null;
+            }));
+        }
+        for (Future<?> worker : done) {
+            worker.get();
+        }
+        workers.shutdown();
+    }
+
+    /**
+     * An operation of the write mix: mostly tracking and approvals, some statuses and a few orderings.
+     */
+    private static CompletableFuture<Void> operation(StorageService storage, int i) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String number = Integer.toString(random.nextInt(PULL_REQUESTS));
+        int kind = random.nextInt(100);
+        if (kind < 40) {
+            Track track = new Track();
+            track.oldPath = "/benchmark/pulls/" + number + "/files";
+            track.newPath = "/benchmark/pulls/" + number + "/overview";
+            track.time = Long.toString(System.currentTimeMillis() * 1000 + i % 1000);
+            // The same writes as StorageService.addTracker, but under benchmark/ rather than the real tracking data
+            String path = "benchmark/tracking/" + track.time;
+            return storage.batch().set(path + "/new", track.newPath).set(path + "/old", track.oldPath).commit();
+        } else if (kind < 75) {
+            Approve approve = new Approve();
+            approve.hunkId = "hunk" + random.nextInt(50);
+            approve.githubLogin = random.nextInt(10);
+            approve.status = random.nextBoolean() ? "approved" : "disapproved";
+            return storage.setApproved("benchmark", "storage", number, approve);
+        } else if (kind < 95) {
+            return storage.setStatus("benchmark", "storage", number, "Benchmark status " + i);
+        } else {
+            List<Ordering> groups = new ArrayList<>();
+            for (int g = 0; g < 10; g++) {
+                Ordering group = new Ordering();
+                group.id = "group" + g;
+                group.diff = Collections.nCopies(20, "hunk" + g);
+                group.info = new TitleDescription();
+                group.info.title = "Group " + g;
+                group.info.description = "Changes of group " + g;
+                groups.add(group);
+            }
+            PullRequestIdentifier pullId = new PullRequestIdentifier("benchmark", "storage", Integer.valueOf(number));
+            return storage.setOrdering(pullId, groups);
+        }
+    }
+
+    /**
+     * When the backend acknowledges a write, so the latencies of the backends are not compared blindly
+     */
+    private static String acknowledgement(String backend) {
+        return "local".equals(backend)
+                ? "once appended to the mapped log, before it is forced to disk"
+                : "once the Firebase servers have the write";
+    }
+
+    private static void report(String backend, long[] latencies, long elapsedNanos, int threads) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        double total = 0;
+        for (long latency : sorted) {
+            total += latency;
+        }
+        System.out.println(String.format(Locale.ROOT,
+                "%-8s %d ops, %d threads: %.0f ops/s, latency mean %.2f ms, p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+                backend, sorted.length, threads,
+                sorted.length / (elapsedNanos / 1e9),
+                total / sorted.length / 1e6,
+                sorted[sorted.length / 2] / 1e6,
+                sorted[(int) (sorted.length * 0.99)] / 1e6,
+                sorted[sorted.length - 1] / 1e6));
+    }
+}
@@ -0,0 +1,59 @@
+package previewcode.backend.services;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import previewcode.backend.DTO.Approve;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores the approvals of hunks by a reviewer.
+ *
+ * Only the approvals under `hunkApprovals` are stored. The number of hunks every reviewer approved or
+ * disapproved is derived from them by the {@link PullRequestMirror}, so there is no second copy that could
+ * diverge from them.
+ */
+@Singleton
+public class ApprovalService {
+
+    static final String APPROVED = "approved";
+    static final String DISAPPROVED = "disapproved";
+
+    private final StorageService storage;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hunks = new AtomicLong();
+
+    @Inject
+    public ApprovalService(StorageService storage, MetricsService metrics) {
+        this.storage = storage;
+        metrics.register("approvals.requests", requests::get);
+        metrics.register("approvals.hunks", hunks::get);
+    }
+
+    /**
+     * Sets the approval status of hunks by one reviewer. The approvals are stored as a single update.
+     *
+     * @param owner
+     *            The owner of the repository where the pull request is located
+     * @param name
+     *            The name of the repository where the pull request is located
+     * @param number
+     *            The number of the pull request
+     * @param githubLogin
+     *            The id of the reviewer that all approvals belong to
+     * @param approvals
+     *            The approvals, applied in order
+     * @return A future that completes once the approvals are stored, and fails if they could not be stored.
+     */
+    public CompletableFuture<Void> setApproved(String owner, String name, String number,
+                                               int githubLogin, List<Approve> approvals) {
+        requests.incrementAndGet();
+        hunks.addAndGet(approvals.size());
+        StorageService.Batch batch = storage.batch();
+        approvals.forEach(approve -> batch.setApproved(owner, name, number, approve));
+        return batch.commit();
+    }
+}
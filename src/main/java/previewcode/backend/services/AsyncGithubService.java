@@ -0,0 +1,363 @@
+package previewcode.backend.services;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+import com.google.inject.servlet.RequestScoped;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import previewcode.backend.DTO.GitHubComment;
+import previewcode.backend.DTO.GitHubPullRequest;
+import previewcode.backend.DTO.GitHubStatus;
+import previewcode.backend.DTO.OrderingStatus;
+import previewcode.backend.DTO.PRComment;
+import previewcode.backend.DTO.PRLineComment;
+import previewcode.backend.DTO.PRbody;
+import previewcode.backend.DTO.PrNumber;
+import previewcode.backend.DTO.PullRequestIdentifier;
+import previewcode.backend.api.exceptionmapper.GitHubApiException;
+import previewcode.backend.services.GitHubRateLimiter.Priority;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Asynchronous variant of {@link GithubService}.
+ *
+ * Every operation returns immediately with a future that is completed once GitHub has responded.
+ * The authorization of the current request is captured when the service is created,
+ * so the returned futures may complete after the request scope has ended.
+ */
+@RequestScoped
+public class AsyncGithubService {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncGithubService.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final String GITHUB_API_URL = "https://api.github.com/repos/";
+
+    static final ResponseDecoder<GitHubPullRequest> PULL_REQUEST = ResponseDecoder.json(GitHubPullRequest.class);
+    static final ResponseDecoder<GitHubComment> COMMENT = ResponseDecoder.json(GitHubComment.class);
+    static final ResponseDecoder<Optional<OrderingStatus>> ORDERING_STATUS = AsyncGithubService::readOrderingStatus;
+
+    private final GitHubApiClient api;
+    private final GitHubMetadataCache metadataCache;
+    private final GithubService.TokenBuilder tokenBuilder;
+    private final Provider<GitHubSession> sessionProvider;
+
+    @Inject
+    public AsyncGithubService(GitHubApiClient api,
+                              GitHubMetadataCache metadataCache,
+                              @Named("github.token.builder") GithubService.TokenBuilder tokenBuilder,
+                              @Named("github.user.session") Provider<GitHubSession> sessionProvider) {
+        this.api = api;
+        this.metadataCache = metadataCache;
+        this.tokenBuilder = tokenBuilder;
+        this.sessionProvider = sessionProvider;
+    }
+
+    /**
+     * Get the session of the user making the current request.
+     * Must be called on the request thread.
+     */
+    public GitHubSession getLoggedInUser() {
+        return this.sessionProvider.get();
+    }
+
+    /**
+     * Checks that the user can see a repository, before data stored for it is served.
+     * The check is sent conditionally, so repeated checks are answered with `304 Not Modified`.
+     *
+     * @param owner The owner of the repository
+     * @param name The name of the repository
+     * @return A future that completes when the user can see the repository, and fails with a
+     *         {@link GitHubApiException} with status 404 when it does not exist or the user can not see it.
+     */
+    public CompletableFuture<Void> checkAccess(String owner, String name) {
+        Request getRepository = tokenBuilder.addToken(new Request.Builder())
+                .url(repositoryUrl(owner, name))
+                .get()
+                .build();
+
+        return api.get(getRepository, ResponseDecoder.IGNORE);
+    }
+
+    /**
+     * A method to create a pull request
+     *
+     * @param owner
+     *            The owner of the repository on which the pull request is
+     *            created
+     * @param name
+     *            The owner of the repository on which the pull request is
+     *            created
+     * @param body
+     *            The body of the pull request
+     * @return The number of the newly made pull request
+     */
+    public CompletableFuture<PrNumber> createPullRequest(String owner, String name, PRbody body) {
+        ObjectNode pull = mapper.createObjectNode()
+                .put("title", body.title)
+                .put("head", body.head)
+                .put("base", body.base)
+                .put("body", body.description);
+
+        Request create = tokenBuilder.addToken(new Request.Builder())
+                .url(repositoryUrl(owner, name) + "/pulls")
+                .post(toJson(pull))
+                .build();
+
+        return api.send(create, PULL_REQUEST)
+                .handle((created, error) -> {
+                    if (error != null) {
+                        throw toIllegalArgument(error);
+                    }
+                    return created;
+                })
+                .thenCompose(created -> {
+                    metadataCache.rememberPullRequest(owner, name, created);
+                    PrNumber number = new PrNumber(created.number);
+                    if (!body.metadata) {
+                        return CompletableFuture.completedFuture(number);
+                    }
+                    Request setBody = tokenBuilder.addToken(new Request.Builder())
+                            .url(created.url)
+                            .patch(toJson(mapper.createObjectNode().put("body", body.description + "\n\n---\n" +
+                                    "Review this pull request [on Preview Code](https://preview-code.com/" +
+                                    owner + "/" + name + "/pulls/" + number.number + "/overview).")))
+                            .build();
+                    return api.send(setBody, ResponseDecoder.IGNORE).thenApply(ignored -> number);
+                });
+    }
+
+    /**
+     * Posts the comment to GitHub
+     *
+     * @param owner
+     *            The owner of the repository where the comment is placed
+     * @param name
+     *            The name of the repository where the comment is placed
+     * @param number
+     *            The number of the pull request
+     * @param comment
+     *            The comment that is placed.
+     * @return The comment to be displayed in the frontend
+     */
+    public CompletableFuture<GitHubComment> postComment(String owner, String name, int number, PRComment comment) {
+        logger.info("Posting GitHub comment");
+        Request postComment = tokenBuilder.addToken(new Request.Builder())
+                .url(repositoryUrl(owner, name) + "/issues/" + number + "/comments")
+                .post(toJson(mapper.createObjectNode().put("body", comment.body)))
+                .build();
+
+        return api.send(postComment, COMMENT);
+    }
+
+    /**
+     * Posts the line comment to GitHub
+     *
+     * @param owner
+     *            The owner of the repository where the comment is placed
+     * @param name
+     *            The name of the repository where the comment is placed
+     * @param number
+     *            The number of the pull request
+     * @param comment
+     *            The comment that is placed.
+     * @return The comment to be displayed in the frontend
+     */
+    public CompletableFuture<GitHubComment> postLineComment(String owner, String name, int number,
+                                                            PRLineComment comment) {
+        logger.info("Posting GitHub line comment");
+        ObjectNode lineComment = mapper.createObjectNode()
+                .put("body", comment.body)
+                .put("commit_id", comment.sha)
+                .put("path", comment.path)
+                .put("position", comment.position);
+
+        Request postComment = tokenBuilder.addToken(new Request.Builder())
+                .url(repositoryUrl(owner, name) + "/pulls/" + number + "/comments")
+                .post(toJson(lineComment))
+                .build();
+
+        return api.send(postComment, COMMENT);
+    }
+
+    /**
+     * Checks if user is owner of pullrequest.
+     * Must be called on the request thread.
+     *
+     * @param owner
+     *      The owner of the base repository
+     * @param name
+     *      The name of the base repository
+     * @param number
+     *      The number of the pull request
+     * @return
+     *     if the user is the owner. Answered from the metadata cache when the author is known,
+     *     otherwise the pull request is fetched, and the future fails if that fails.
+     */
+    public CompletableFuture<Boolean> isOwner(String owner, String name, int number) {
+        String login = this.getLoggedInUser().login;
+        Optional<GitHubMetadataCache.PullRequestFacts> facts = metadataCache.getPullRequest(owner, name, number);
+        if (facts.isPresent()) {
+            return CompletableFuture.completedFuture(facts.get().isAuthor(login));
+        }
+        return this.fetchPullRequest(new PullRequestIdentifier(owner, name, number))
+                .thenApply(pull -> isAuthor(pull, login));
+    }
+
+    /**
+     * Checks if the user with the given login is the author of the pull request.
+     */
+    public static boolean isAuthor(GitHubPullRequest pullRequest, String login) {
+        return pullRequest.user != null && pullRequest.user.login.equals(login);
+    }
+
+    /**
+     * GET a pull request from GitHub.
+     * The immutable facts of the pull request are remembered in the metadata cache.
+     *
+     * @param identifier The identifier object containing owner, name and number of the pull to fetch.
+     */
+    public CompletableFuture<GitHubPullRequest> fetchPullRequest(PullRequestIdentifier identifier) {
+        logger.info("Fetching pull request from GitHub API...");
+        Request getPull = tokenBuilder.addToken(new Request.Builder())
+                .url(identifier.toGitHubURL())
+                .get()
+                .build();
+
+        return api.get(getPull, PULL_REQUEST).thenApply(pull -> {
+            metadataCache.rememberPullRequest(identifier.owner, identifier.name, pull);
+            return pull;
+        });
+    }
+
+    /**
+     * Sends a request to GitHub to place a comment at the given pull request.
+     * The comment is queued when the rate limit budget is exhausted.
+     *
+     * @param pullRequest The PR to place the comment on
+     * @param comment The comment to place
+     */
+    public CompletableFuture<Void> placePullRequestComment(GitHubPullRequest pullRequest, PRComment comment) {
+        logger.info("[OKHTTP3] Posting comment to GitHub");
+        Request postComment = tokenBuilder.addToken(new Request.Builder())
+                .url(pullRequest.links.comments)
+                .post(toJson(comment))
+                .build();
+
+        return api.send(postComment, ResponseDecoder.IGNORE, Priority.DEFERRABLE);
+    }
+
+    /**
+     * Send a request to GitHub to set the status on the `ordering` context.
+     * The status is queued when the rate limit budget is exhausted.
+     * @param pullRequest The pull request to set the status on.
+     * @param status The status to set.
+     */
+    public CompletableFuture<Void> setOrderingStatus(GitHubPullRequest pullRequest, OrderingStatus status) {
+        logger.info("Setting pull request status to: " + status);
+        Request createStatus = tokenBuilder.addToken(new Request.Builder())
+                .url(pullRequest.links.statuses)
+                .post(toJson(status))
+                .build();
+
+        return api.send(createStatus, ResponseDecoder.IGNORE, Priority.DEFERRABLE);
+    }
+
+    /**
+     * Get the status of the pull request on the `ordering` context.
+     * @param pullRequest The pull request to get the status of.
+     * @return The ordering status, if it was ever set.
+     */
+    public CompletableFuture<Optional<OrderingStatus>> getOrderingStatus(GitHubPullRequest pullRequest) {
+        logger.info("Fetching pull request status from GitHub API");
+        Request getStatus = tokenBuilder.addToken(new Request.Builder())
+                .url(pullRequest.links.statuses)
+                .get()
+                .build();
+
+        return api.get(getStatus, ORDERING_STATUS);
+    }
+
+    /**
+     * Streams through a list of statuses and stops at the first status on the `ordering` context.
+     * GitHub lists the most recent status first, so that is the current ordering status.
+     * Only the fields of {@link GitHubStatus} are read, everything else is skipped without being parsed.
+     */
+    private static Optional<OrderingStatus> readOrderingStatus(InputStream body) throws IOException {
+        try (JsonParser parser = mapper.getFactory().createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new JsonParseException(parser, "Expected a list of statuses");
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                Optional<OrderingStatus> status = OrderingStatus.fromGitHubStatus(readStatus(parser));
+                if (status.isPresent()) {
+                    return status;
+                }
+            }
+            return Optional.empty();
+        }
+    }
+
+    private static GitHubStatus readStatus(JsonParser parser) throws IOException {
+        String state = null, description = null, context = null, url = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "state": state = parser.getValueAsString(); break;
+                case "description": description = parser.getValueAsString(); break;
+                case "context": context = parser.getValueAsString(); break;
+                case "target_url": url = parser.getValueAsString(); break;
+                default:
+                    if (value.isStructStart()) {
+                        parser.skipChildren();
+                    }
+            }
+        }
+        return new GitHubStatus(state, description, context, url);
+    }
+
+    private static String repositoryUrl(String owner, String name) {
+        return GITHUB_API_URL + owner.toLowerCase() + "/" + name.toLowerCase();
+    }
+
+    private static RequestBody toJson(Object value) {
+        try {
+            return RequestBody.create(MediaType.parse("application/json"), mapper.writeValueAsString(value));
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Unable to process request", e);
+        }
+    }
+
+    /**
+     * Turns a failed call into an {@link IllegalArgumentException} carrying the first error reported by GitHub.
+     */
+    private static IllegalArgumentException toIllegalArgument(Throwable error) {
+        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+        if (cause instanceof GitHubApiException) {
+            try {
+                JsonNode errors = mapper.readTree(((GitHubApiException) cause).responseBody).get("errors");
+                if (errors != null && errors.isArray() && errors.size() > 0) {
+                    return new IllegalArgumentException(errors.get(0).get("message").asText());
+                }
+            } catch (IOException | RuntimeException ignored) {
+            }
+        }
+        return new IllegalArgumentException("Unable to process request");
+    }
+}
@@ -0,0 +1,164 @@
+package previewcode.backend.services;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the validators (`ETag` and `Last-Modified`) and decoded bodies of GitHub GET responses,
+ * so they can be re-requested conditionally.
+ *
+ * GitHub answers a conditional request for an unchanged resource with `304 Not Modified`,
+ * which carries no body and does not count against the rate limit.
+ * The decoded body is then served from memory instead.
+ *
+ * Responses are cached per URL and per authorization scope, because GitHub varies its responses on
+ * the `Authorization` and `Accept` headers. The cache is bounded by the size of the cached bodies.
+ */
+@Singleton
+public class ConditionalRequestCache {
+
+    private static final long MAX_CACHED_BYTES = 64L * 1024 * 1024;
+
+    private final Cache<Key, Entry> entries = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_CACHED_BYTES)
+            .weigher((Key key, Entry entry) -> key.url.length() + entry.size)
+            .build();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    @Inject
+    public ConditionalRequestCache(MetricsService metrics) {
+        metrics.register("github.conditionalRequests.hits", hits::get);
+        metrics.register("github.conditionalRequests.misses", misses::get);
+        metrics.register("github.conditionalRequests.hitRatio", this::hitRatio);
+        metrics.register("github.conditionalRequests.bytesSaved", bytesSaved::get);
+        metrics.register("github.conditionalRequests.size", entries::size);
+    }
+
+    /**
+     * Look up the cached response for a GET request.
+     *
+     * @param request The request that is about to be sent
+     * @param decoder The decoder that will be applied to the body,
+     *                a cached body is only returned when it was decoded with the same decoder.
+     * @return The cached response, or `null` if there is none.
+     */
+    public Entry lookup(Request request, Object decoder) {
+        Entry entry = entries.getIfPresent(Key.of(request));
+        if (entry == null || entry.decoder != decoder) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Records that GitHub confirmed the cached response to be up-to-date.
+     */
+    public void hit(Entry entry) {
+        hits.incrementAndGet();
+        bytesSaved.addAndGet(entry.size);
+    }
+
+    /**
+     * Stores a fresh response, if it carries any validators.
+     *
+     * @param request The request as it was sent
+     * @param response The response received from GitHub
+     * @param decoder The decoder that was applied to the body
+     * @param value The decoded body
+     * @param size The (approximate) size of the body in bytes
+     */
+    public void store(Request request, Response response, Object decoder, Object value, int size) {
+        misses.incrementAndGet();
+        String etag = response.header("ETag");
+        String lastModified = response.header("Last-Modified");
+        if (etag != null || lastModified != null) {
+            entries.put(Key.of(request), new Entry(etag, lastModified, decoder, value, size));
+        }
+    }
+
+    private double hitRatio() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0.0 : (double) hits.get() / total;
+    }
+
+    public static class Entry {
+        private final String etag;
+        private final String lastModified;
+        private final Object decoder;
+        private final Object value;
+        private final int size;
+
+        private Entry(String etag, String lastModified, Object decoder, Object value, int size) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.decoder = decoder;
+            this.value = value;
+            this.size = size;
+        }
+
+        /**
+         * @return The given request, made conditional on the validators of this entry.
+         */
+        public Request conditional(Request request) {
+            Request.Builder builder = request.newBuilder();
+            if (etag != null) {
+                builder.header("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                builder.header("If-Modified-Since", lastModified);
+            }
+            return builder.build();
+        }
+
+        /**
+         * @return The decoded body of the cached response.
+         */
+        @SuppressWarnings("unchecked")
+        public <T> T value() {
+            return (T) value;
+        }
+    }
+
+    private static class Key {
+        private final String url;
+        private final String scope;
+
+        private Key(String url, String scope) {
+            this.url = url;
+            this.scope = scope;
+        }
+
+        static Key of(Request request) {
+            String scope = Strings.nullToEmpty(request.header("Authorization")) + "\n" +
+                    Strings.nullToEmpty(request.header("Accept"));
+            return new Key(request.url().toString(),
+                    Hashing.sha256().hashString(scope, StandardCharsets.UTF_8).toString());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return url.equals(key.url) && scope.equals(key.scope);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(url, scope);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package previewcode.backend.services;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ValueEventListener;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks whether the backend is connected to Firebase.
+ *
+ * A single listener on `.info/connected` is kept for the lifetime of the backend,
+ * instead of one listener for every operation that waits for the connection.
+ */
+@Singleton
+public class FirebaseConnectionMonitor {
+
+    private static final Logger logger = LoggerFactory.getLogger(FirebaseConnectionMonitor.class);
+
+    /**
+     * Completes when the connection is established, replaced by a new future when the connection is lost.
+     */
+    private CompletableFuture<Void> connected = new CompletableFuture<>();
+
+    private final AtomicLong disconnects = new AtomicLong();
+
+    @Inject
+    public FirebaseConnectionMonitor(MetricsService metrics) {
+        metrics.register("firebase.connected", () -> this.isConnected() ? 1 : 0);
+        metrics.register("firebase.disconnects", disconnects::get);
+
+        FirebaseDatabase.getInstance().getReference(".info/connected").addValueEventListener(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot snapshot) {
+                FirebaseConnectionMonitor.this.update(Boolean.TRUE.equals(snapshot.getValue()));
+            }
+
+            @Override
+            public void onCancelled(DatabaseError error) {
+                logger.error("Stopped monitoring the Firebase connection: " + error.getMessage());
+            }
+        });
+    }
+
+    /**
+     * @return whether the backend is currently connected to Firebase.
+     */
+    public synchronized boolean isConnected() {
+        return connected.isDone();
+    }
+
+    /**
+     * @return A future that completes once the backend is connected to Firebase,
+     * or a completed future if it is connected already.
+     */
+    public synchronized CompletableFuture<Void> whenConnected() {
+        return connected.thenApply(done -> done);
+    }
+
+    private void update(boolean isConnected) {
+        CompletableFuture<Void> established = null;
+        synchronized (this) {
+            if (isConnected && !connected.isDone()) {
+                established = connected;
+            } else if (!isConnected && connected.isDone()) {
+                connected = new CompletableFuture<>();
+                disconnects.incrementAndGet();
+            } else {
+                return;
+            }
+        }
+        logger.info(isConnected ? "Connected to Firebase" : "Lost the connection to Firebase");
+        if (established != null) {
+            // Completed outside the lock, since waiting operations continue on this thread
+            established.complete(null);
+        }
+    }
+}
@@ -1,25 +1,25 @@
 package previewcode.backend.services;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.firebase.database.*;
-import com.google.firebase.database.Transaction.Handler;
-import com.google.firebase.database.Transaction.Result;
+import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
-import previewcode.backend.DTO.Approve;
-import previewcode.backend.DTO.Ordering;
 import previewcode.backend.DTO.PullRequestIdentifier;
-import previewcode.backend.DTO.Track;
 
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.function.Function;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
 /**
- * An abstract class that connects with firebase
+ * Stores the data of pull requests in Firebase
  */
 @Singleton
-public class FirebaseService {
+public class FirebaseService implements StorageService {
 
     private static final Logger logger = LoggerFactory.getLogger(FirebaseService.class);
     /**
@@ -28,187 +28,141 @@ public class FirebaseService {
     protected DatabaseReference ref;
 
     /**
-     * Recursion count for the transaction
+     * Commits the writes of a batch
      */
-    private static final int RETRY_COUNT = 5;
+    private final FirebaseWriter writer;
 
     /**
-     * Making a connection with the database
+     * Runs the transactions of the service
      */
-    public FirebaseService() {
-        logger.debug("Instantiating Firebase connection");
-        ref = FirebaseDatabase.getInstance().getReference();
-    }
+    private final FirebaseTransactions transactions;
 
     /**
-     * Sets the LGTM of a hunk in firebase
-     *
-     * @param owner
-     *            The owner of the repository where the pull request is located
-     * @param name
-     *            The name of the repository where the pull request is located
-     * @param number
-     *            The number of the pull request
-     * @param LGTM
-     *            The approved object with information for firebase
+     * The status of a pull request that has no status yet
      */
-    public void setApproved(String owner, String name, String number, Approve LGTM) {
-        this.ref.child(owner).child(name).child("pulls").child(number)
-                .child("hunkApprovals").child(LGTM.hunkId).child(String.valueOf(LGTM.githubLogin)).setValue(LGTM.status);
-    }
+    static final String DEFAULT_STATUS = "No status yet";
+
+    private static final long MAX_KNOWN_PULL_REQUESTS = 50_000;
 
     /**
-     * Setting comments on Firebase
-     *
-     * @param owner
-     *            The owner of the repository where the comment is posted
-     * @param name
-     *            The name of the repository where the comment is posted
-     * @param number
-     *            The number of the pull request
-     * @param commentID
-     *            The id of the comment
-     * @param groupID
-     *            The id of the group
+     * The status paths of pull requests that are known to have default data.
+     * Pull requests never lose their status, so these paths need no further checks.
      */
-    public void setComments(String owner, String name, int number,
-                            Integer commentID, String groupID) {
-        owner = owner.toLowerCase();
-        name = name.toLowerCase();
-        this.ref.child(owner).child(name).child("pulls")
-                .child(Integer.toString(number)).child("groupcomments")
-                .child(Integer.toString(commentID)).setValue(groupID);
-    }
+    private final Cache<String, Boolean> knownPullRequests = CacheBuilder.newBuilder()
+            .maximumSize(MAX_KNOWN_PULL_REQUESTS)
+            .recordStats()
+            .build();
 
     /**
-     * Makes the transaction this is a workaround as stated in: https://groups.google.com/forum/#!msg/firebase-talk/u1mgEEODF-o/v55dOFZiAAAJ
-     *
-     * @param path
-     *                  The path where the transaction takes place
-     * @param handler
-     *                  The function that is executed in order to do the transaction
+     * Making a connection with the database
      */
-    private CompletableFuture<DataSnapshot> doTransaction(
-            final DatabaseReference path,
-            final Function<MutableData, Transaction.Result> handler,
-            int retries) {
-        final CompletableFuture<DataSnapshot> future = new CompletableFuture<>();
-        final DatabaseReference infoRef = this.ref.child(".info").child("connected");
-
-        logger.debug("Initializing Firebase transaction");
-        infoRef.addValueEventListener(new ValueEventListener() {
-
-            final ValueEventListener that = this;
-
-            @Override
-            public void onDataChange(DataSnapshot connected) {
-                if ((Boolean) connected.getValue()) {
-                    logger.debug("Connection with Firebase established");
-                    path.runTransaction(new Handler() {
-
-                        @Override
-                        public void onComplete(DatabaseError error, boolean isCommited, DataSnapshot currentData) {
-                            infoRef.removeEventListener(that);
-                            if (error != null) {
-                                if (retries > 0) {
-                                    logger.debug("Transaction failed with error");
-                                    logger.debug("  Error code: " + error.getCode());
-                                    logger.debug("  Error message: " + error.getMessage());
-                                    logger.debug("  Error details: " + error.getDetails());
-                                    logger.debug("  " + retries + " retry attempts left");
-                                    FirebaseService.this.doTransaction(path, handler, retries - 1);
-                                } else {
-                                    logger.error("Transaction failed: ", error.toException());
-                                    future.completeExceptionally(new RuntimeException(error.toException()));
-                                }
-                            } else {
-                                logger.debug("Transaction completed successfully");
-                                future.complete(currentData);
-                            }
-                        }
-
-                        @Override
-                        public Result doTransaction(MutableData data) {
-                            logger.debug("Performing transaction");
-                            return handler.apply(data);
-                        }
-                    });
-                }
-            }
+    @Inject
+    public FirebaseService(FirebaseWriter writer, FirebaseTransactions transactions, MetricsService metrics) {
+        logger.debug("Instantiating Firebase connection");
+        ref = FirebaseDatabase.getInstance().getReference();
+        this.writer = writer;
+        this.transactions = transactions;
 
-            @Override
-            public void onCancelled(DatabaseError error) {
-                future.completeExceptionally(new RuntimeException(error.toException()));
-            }
-        });
+        metrics.register("firebase.defaultData.known", () -> knownPullRequests.stats().hitCount());
+        metrics.register("firebase.defaultData.checked", () -> knownPullRequests.stats().missCount());
+        metrics.register("firebase.defaultData.size", knownPullRequests::size);
+    }
 
-        return future;
+    @Override
+    public Batch batch() {
+        return new Batch();
     }
 
     /**
-     * Sets the ordering of a pull request on firebase
+     * Adds default information about a pull request, as there is no data present in our service.
+     * Only the status of the pull request is read, and it is only set if it is absent.
      *
      * @param pullId The identifier object for the pull request
+     * @return A future that completes once the pull request is known to have a status.
      */
-    public void setOrdering(final PullRequestIdentifier pullId, List<Ordering> orderings) {
-
-        DatabaseReference path = this.ref
-                .child(pullId.owner)
-                .child(pullId.name).child("pulls")
-                .child(pullId.number.toString())
-                .child("ordering");
-
-        logger.info("Updating ordering on Firebase");
-        path.child("lastChanged").setValue(System.currentTimeMillis());
-        path.child("groups").setValue(orderings);
+    @Override
+    public CompletableFuture<Void> addDefaultData(PullRequestIdentifier pullId) {
+        String statusPath = StorageService.pullPath(pullId.owner, pullId.name, pullId.number.toString()) + "/status";
+        if (knownPullRequests.getIfPresent(statusPath) != null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return transactions.run(this.ref.child(statusPath), data -> {
+            if (data.getValue() != null) {
+                // Leave the present status alone, without writing it back
+                return Transaction.abort();
+            }
+            data.setValue(DEFAULT_STATUS);
+            return Transaction.success(data);
+        }).thenAccept(status -> knownPullRequests.put(statusPath, Boolean.TRUE));
     }
 
-    /**
-     * Sets the status of a pull request on firebase
-     *
-     * @param owner
-     *            The owner of the repository where the pull request is located
-     * @param name
-     *            The name of the repository where the pull request is located
-     * @param number
-     *            The number of the pull request
-     * @param status
-     *            The status of the pull request
-     */
-    public void setStatus(String owner, String name, String number, String status) {
-        this.ref.child(owner).child(name).child("pulls").child(number)
-                .child("status").setValue(status);
+    @Override
+    public CompletableFuture<Object> update(String path, UnaryOperator<Object> update) {
+        return transactions.run(this.ref.child(path), data -> {
+            data.setValue(update.apply(data.getValue()));
+            return Transaction.success(data);
+        }).thenApply(DataSnapshot::getValue);
     }
 
-    public void addTracker(Track data) {
-        DatabaseReference path = this.ref.child("tracking").child(data.time);
-        path.child("new").setValue(data.newPath);
-        path.child("old").setValue(data.oldPath);
+    @Override
+    public CompletableFuture<Map<String, Object>> readRange(String path, String fromKey, String toKey) {
+        CompletableFuture<Map<String, Object>> children = new CompletableFuture<>();
+        this.ref.child(path).orderByKey().startAt(fromKey).endAt(toKey)
+                .addListenerForSingleValueEvent(new ValueEventListener() {
+                    @Override
+                    public void onDataChange(DataSnapshot snapshot) {
+                        Map<String, Object> values = new LinkedHashMap<>();
+                        for (DataSnapshot child : snapshot.getChildren()) {
+                            values.put(child.getKey(), child.getValue());
+                        }
+                        children.complete(values);
+                    }
+
+                    @Override
+                    public void onCancelled(DatabaseError error) {
+                        children.completeExceptionally(error.toException());
+                    }
+                });
+        return children;
     }
 
-    /**
-     * Adds default information about a pull request, as there is no data present in our service.
-     *
-     * @param pullId The identifier object for the pull request
-     */
-    public void addDefaultData(PullRequestIdentifier pullId) {
-        FirebaseService that = this;
-        this.ref.addListenerForSingleValueEvent(new ValueEventListener() {
+    @Override
+    public Subscription watch(String path, Consumer<Object> onChange, Consumer<Throwable> onError) {
+        DatabaseReference watched = this.ref.child(path);
+        ValueEventListener listener = watched.addValueEventListener(new ValueEventListener() {
             @Override
             public void onDataChange(DataSnapshot snapshot) {
-                if (!snapshot.hasChild(pullId.owner + "/" + pullId.name + "/pulls/" + pullId.number + "/status")) {
-                    that.ref.child(pullId.owner)
-                            .child(pullId.name)
-                            .child("pulls")
-                            .child(pullId.number.toString())
-                            .child("status")
-                            .setValue("No status yet");
-                }
+                onChange.accept(snapshot.getValue());
             }
+
             @Override
             public void onCancelled(DatabaseError error) {
-                throw new RuntimeException(error.toException());
+                onError.accept(error.toException());
             }
         });
+        return () -> watched.removeEventListener(listener);
+    }
+
+    /**
+     * A batch that is committed as a single multi-path update of the database root
+     */
+    public class Batch implements StorageService.Batch {
+
+        private final Map<String, Object> updates = new LinkedHashMap<>();
+
+        private Batch() {
+        }
+
+        @Override
+        public Batch set(String path, Object value) {
+            updates.put(path, value);
+            return this;
+        }
+
+        @Override
+        public CompletableFuture<Void> commit() {
+            return writer.write(updates);
+        }
     }
 }
@@ -0,0 +1,181 @@
+package previewcode.backend.services;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.MutableData;
+import com.google.firebase.database.Transaction;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Runs Firebase transactions.
+ *
+ * Transactions wait for the connection to Firebase,
+ * as stated in: https://groups.google.com/forum/#!msg/firebase-talk/u1mgEEODF-o/v55dOFZiAAAJ
+ * At most a fixed number of them runs at the same time; the others wait in line.
+ * A failed transaction is retried with exponential backoff, and its caller is only told about the outcome
+ * of the last attempt.
+ */
+@Singleton
+public class FirebaseTransactions {
+
+    private static final Logger logger = LoggerFactory.getLogger(FirebaseTransactions.class);
+
+    private static final int MAX_ATTEMPTS = 6;
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5_000;
+
+    private final FirebaseConnectionMonitor connection;
+
+    private final ScheduledExecutorService backoff = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("firebase-transaction-backoff-%d").setDaemon(true).build());
+
+    /**
+     * Transactions that wait for a free slot, guarded by `this`.
+     */
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+    private int freeSlots;
+
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong contention = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicInteger running = new AtomicInteger();
+    private final MetricsService.Timer latency;
+
+    @Inject
+    public FirebaseTransactions(FirebaseConnectionMonitor connection,
+                                @Named("firebase.transactions.concurrency") int concurrency,
+                                MetricsService metrics) {
+        this.connection = connection;
+        this.freeSlots = concurrency;
+
+        metrics.register("firebase.transactions.started", started::get);
+        metrics.register("firebase.transactions.running", running::get);
+        metrics.register("firebase.transactions.waiting", this::waitingCount);
+        metrics.register("firebase.transactions.retries", retries::get);
+        metrics.register("firebase.transactions.contention", contention::get);
+        metrics.register("firebase.transactions.failures", failures::get);
+        this.latency = metrics.timer("firebase.transactions.latency");
+    }
+
+    /**
+     * Runs a transaction.
+     *
+     * @param path The path where the transaction takes place
+     * @param handler The function that is executed in order to do the transaction.
+     *                Firebase runs it again whenever the data changed concurrently, so it must not have side effects.
+     * @return A future with the data at the path once the transaction completed or was aborted.
+     */
+    public CompletableFuture<DataSnapshot> run(DatabaseReference path,
+                                               Function<MutableData, Transaction.Result> handler) {
+        CompletableFuture<DataSnapshot> result = new CompletableFuture<>();
+        long startedAt = System.nanoTime();
+        started.incrementAndGet();
+        result.whenComplete((snapshot, error) -> latency.recordSince(startedAt));
+        this.whenFree(() -> this.attempt(path, handler, 1, result));
+        return result;
+    }
+
+    private void attempt(DatabaseReference path,
+                         Function<MutableData, Transaction.Result> handler,
+                         int attempt,
+                         CompletableFuture<DataSnapshot> result) {
+        connection.whenConnected().thenRun(() -> path.runTransaction(new Transaction.Handler() {
+            private boolean ranBefore;
+
+            @Override
+            public Transaction.Result doTransaction(MutableData data) {
+                // Firebase runs the handler again when the data changed under it
+                if (ranBefore) {
+                    contention.incrementAndGet();
+                }
+                ranBefore = true;
+                return handler.apply(data);
+            }
+
+            @Override
+            public void onComplete(DatabaseError error, boolean committed, DataSnapshot currentData) {
+                if (error == null) {
+                    FirebaseTransactions.this.release();
+                    result.complete(currentData);
+                } else if (attempt < MAX_ATTEMPTS && isRetryable(error)) {
+                    retries.incrementAndGet();
+                    long delay = backoffMillis(attempt);
+                    logger.debug("Transaction on " + path + " failed with error " + error.getCode()
+                            + " (" + error.getMessage() + "), retrying in " + delay + " ms");
+                    // The slot is kept while backing off, so retries do not add contention
+                    backoff.schedule(() -> FirebaseTransactions.this.attempt(path, handler, attempt + 1, result),
+                            delay, TimeUnit.MILLISECONDS);
+                } else {
+                    failures.incrementAndGet();
+                    FirebaseTransactions.this.release();
+                    logger.error("Transaction on " + path + " failed after " + attempt + " attempts: ",
+                            error.toException());
+                    result.completeExceptionally(new RuntimeException(error.toException()));
+                }
+            }
+        }));
+    }
+
+    private void whenFree(Runnable transaction) {
+        synchronized (this) {
+            if (freeSlots == 0) {
+                waiting.add(transaction);
+                return;
+            }
+            freeSlots--;
+        }
+        running.incrementAndGet();
+        transaction.run();
+    }
+
+    private void release() {
+        running.decrementAndGet();
+        Runnable next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                freeSlots++;
+                return;
+            }
+        }
+        running.incrementAndGet();
+        next.run();
+    }
+
+    private synchronized int waitingCount() {
+        return waiting.size();
+    }
+
+    private static boolean isRetryable(DatabaseError error) {
+        return error.getCode() != DatabaseError.PERMISSION_DENIED
+                && error.getCode() != DatabaseError.INVALID_TOKEN
+                && error.getCode() != DatabaseError.EXPIRED_TOKEN;
+    }
+
+    /**
+     * The delay before the given attempt is retried. It doubles per attempt,
+     * with jitter so the retries of contended transactions spread out.
+     */
+    private static long backoffMillis(int attempt) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << (attempt - 1));
+        return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+}
@@ -0,0 +1,348 @@
+package previewcode.backend.services;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.firebase.database.DatabaseException;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import previewcode.backend.api.exceptionmapper.StorageUnavailableException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Commits writes to Firebase as atomic multi-path updates of the database root.
+ *
+ * When coalescing is enabled, the writes of concurrent requests are collected for a few milliseconds
+ * and committed together in one update. A write that overlaps with a collected write, because one path
+ * is an ancestor of the other, first commits the collected writes, since Firebase rejects overlapping paths
+ * in one update. Writes to the same path are merged, the later value wins.
+ *
+ * Every written path counts towards a budget of paths awaiting acknowledgement. While Firebase lags behind,
+ * for instance when the connection is lost, new writes are queued until earlier writes are acknowledged,
+ * instead of growing the queue of the Firebase client without bound. Writers never block: some write on
+ * the Firebase event thread, which also delivers the acknowledgements. A write fails when the queue is full
+ * or when it waited too long. On shutdown, the writer waits for the outstanding writes to be acknowledged.
+ */
+@Singleton
+public class FirebaseWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(FirebaseWriter.class);
+
+    /**
+     * The path types that get their own latency histogram, so arbitrary keys cannot create metrics
+     */
+    private static final Set<String> PULL_REQUEST_FIELDS = new HashSet<>(Arrays.asList(
+            "status", "ordering", "hunkApprovals", "groupcomments"));
+    private static final Set<String> TOP_LEVEL_NODES = new HashSet<>(Arrays.asList(
+            "tracking", "trackingRollups"));
+
+    private final DatabaseReference root;
+    private final long coalesceMillis;
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("firebase-write-flush-%d").setDaemon(true).build());
+
+    /**
+     * The collected writes by path, sorted so overlapping paths are found quickly.
+     */
+    private TreeMap<String, Object> collected = new TreeMap<>();
+    private List<CompletableFuture<Void>> waiting = new ArrayList<>();
+    private boolean flushScheduled;
+    private boolean stopped;
+
+    /**
+     * The writes that wait for budget, in the order they were written
+     */
+    private final ArrayDeque<Queued> queued = new ArrayDeque<>();
+    private int queuedPaths;
+    private int freePermits;
+    private boolean drainScheduled;
+
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong paths = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong overlapFlushes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong inFlight = new AtomicLong();
+    private final MetricsService metrics;
+    private final MetricsService.Timer latency;
+    private final Map<String, MetricsService.Histogram> latencyByType = new ConcurrentHashMap<>();
+
+    /**
+     * The paths that may be written before Firebase acknowledges earlier writes
+     */
+    private final int maxPending;
+    private final long pendingTimeoutMillis;
+
+    @Inject
+    public FirebaseWriter(@Named("firebase.coalesce") int coalesceMillis,
+                          @Named("firebase.writes.maxPending") int maxPending,
+                          @Named("firebase.writes.pendingTimeout") int pendingTimeoutMillis,
+                          MetricsService metrics,
+                          ShutdownRegistry shutdown) {
+        this.root = FirebaseDatabase.getInstance().getReference();
+        this.coalesceMillis = coalesceMillis;
+        this.maxPending = maxPending;
+        this.freePermits = maxPending;
+        this.pendingTimeoutMillis = pendingTimeoutMillis;
+        this.metrics = metrics;
+
+        metrics.register("firebase.writes.commits", commits::get);
+        metrics.register("firebase.writes.batches", batches::get);
+        metrics.register("firebase.writes.paths", paths::get);
+        metrics.register("firebase.writes.batchesPerCommit", () -> ratio(batches.get(), commits.get()));
+        metrics.register("firebase.writes.pathsPerCommit", () -> ratio(paths.get(), commits.get()));
+        metrics.register("firebase.writes.overlapFlushes", overlapFlushes::get);
+        metrics.register("firebase.writes.failures", failures::get);
+        metrics.register("firebase.writes.inFlight", inFlight::get);
+        metrics.register("firebase.writes.pendingPaths", this::pendingPaths);
+        metrics.register("firebase.writes.queuedPaths", this::queuedPaths);
+        metrics.register("firebase.writes.throttled", throttled::get);
+        metrics.register("firebase.writes.rejected", rejected::get);
+        this.latency = metrics.timer("firebase.writes.latency");
+
+        shutdown.register(ShutdownRegistry.Phase.PERSISTENCE, "firebase writer", timeout -> {
+            synchronized (this) {
+                stopped = true;
+            }
+            this.flush();
+            // The flusher keeps running until then, as it issues the queued writes
+            long deadline = System.nanoTime() + timeout.toNanos();
+            synchronized (this) {
+                while ((inFlight.get() > 0 || !queued.isEmpty()) && deadline - System.nanoTime() > 0) {
+                    this.wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+                }
+                if (inFlight.get() > 0 || !queued.isEmpty()) {
+                    logger.warn(inFlight.get() + " Firebase writes were not acknowledged and "
+                            + queued.size() + " were not issued before shutdown");
+                }
+            }
+            flusher.shutdown();
+        });
+    }
+
+    /**
+     * Writes the given values atomically. Never blocks: while too many written paths await acknowledgement,
+     * the write is queued until earlier writes are acknowledged.
+     *
+     * @param updates The values to write by their path from the database root. A `null` value deletes the path.
+     * @return A future that completes once Firebase has acknowledged the write, or fails if Firebase rejects it,
+     *         the queue is full or the write waited longer than the pending timeout.
+     */
+    public CompletableFuture<Void> write(Map<String, Object> updates) {
+        batches.incrementAndGet();
+        if (updates.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        // A write larger than the budget takes the whole budget, so it waits for all others instead of forever
+        int permits = Math.min(updates.size(), maxPending);
+        synchronized (this) {
+            if (queued.isEmpty() && freePermits >= permits) {
+                freePermits -= permits;
+                this.issue(new HashMap<>(updates), permits, written);
+            } else if (queuedPaths + permits > maxPending || flusher.isShutdown()) {
+                rejected.incrementAndGet();
+                logger.warn("Rejected a write of " + updates.size() + " paths: " + queuedPaths
+                        + " paths are queued for Firebase");
+                written.completeExceptionally(new StorageUnavailableException(
+                        "Too many Firebase writes await acknowledgement"));
+            } else {
+                throttled.incrementAndGet();
+                Queued write = new Queued(new HashMap<>(updates), permits, written);
+                queued.add(write);
+                queuedPaths += permits;
+                flusher.schedule(() -> this.expire(write), pendingTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Commits or collects a write for which budget has been taken. Guarded by `this`.
+     */
+    private void issue(Map<String, Object> updates, int permits, CompletableFuture<Void> written) {
+        inFlight.incrementAndGet();
+        written.whenComplete((done, error) -> this.release(permits));
+        try {
+            // Commits are issued while holding the lock, so Firebase applies them in the order they were written
+            if (coalesceMillis <= 0 || stopped) {
+                this.commit(updates, Collections.singletonList(written));
+                return;
+            }
+            if (updates.keySet().stream().anyMatch(this::overlapsCollected)) {
+                overlapFlushes.incrementAndGet();
+                this.commitCollected();
+            }
+            collected.putAll(updates);
+            waiting.add(written);
+            if (!flushScheduled) {
+                flushScheduled = true;
+                flusher.schedule(this::flush, coalesceMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (RuntimeException e) {
+            // The budget of a write is only given back once its future completes
+            written.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Gives back the budget of an acknowledged or failed write. Queued writes are issued on the flusher,
+     * as this may run within a commit.
+     */
+    private synchronized void release(int permits) {
+        inFlight.decrementAndGet();
+        freePermits += permits;
+        this.scheduleDrain();
+        this.notifyAll();
+    }
+
+    private void scheduleDrain() {
+        if (!queued.isEmpty() && !drainScheduled && freePermits >= queued.peek().permits && !flusher.isShutdown()) {
+            drainScheduled = true;
+            flusher.execute(this::drain);
+        }
+    }
+
+    private synchronized void drain() {
+        drainScheduled = false;
+        while (!queued.isEmpty() && freePermits >= queued.peek().permits) {
+            Queued write = queued.poll();
+            queuedPaths -= write.permits;
+            freePermits -= write.permits;
+            this.issue(write.updates, write.permits, write.written);
+        }
+    }
+
+    /**
+     * Fails a write that is still queued after the pending timeout.
+     */
+    private synchronized void expire(Queued write) {
+        if (queued.remove(write)) {
+            queuedPaths -= write.permits;
+            rejected.incrementAndGet();
+            logger.warn("Expired a queued write of " + write.updates.size() + " paths after "
+                    + pendingTimeoutMillis + "ms");
+            write.written.completeExceptionally(new StorageUnavailableException(
+                    "Firebase did not acknowledge earlier writes within " + pendingTimeoutMillis + "ms"));
+            this.scheduleDrain();
+            this.notifyAll();
+        }
+    }
+
+    private synchronized int pendingPaths() {
+        return maxPending - freePermits;
+    }
+
+    private synchronized int queuedPaths() {
+        return queuedPaths;
+    }
+
+    private synchronized void flush() {
+        flushScheduled = false;
+        if (!collected.isEmpty()) {
+            this.commitCollected();
+        }
+    }
+
+    private void commitCollected() {
+        // Swapped out first, so a write Firebase rejects cannot stay behind and fail every later flush
+        Map<String, Object> updates = collected;
+        List<CompletableFuture<Void>> written = waiting;
+        collected = new TreeMap<>();
+        waiting = new ArrayList<>();
+        this.commit(updates, written);
+    }
+
+    private void commit(Map<String, Object> updates, List<CompletableFuture<Void>> written) {
+        commits.incrementAndGet();
+        paths.addAndGet(updates.size());
+        long startedAt = System.nanoTime();
+        Set<String> types = updates.keySet().stream().map(FirebaseWriter::pathType).collect(Collectors.toSet());
+        try {
+            root.updateChildren(updates, (error, ref) -> {
+                long elapsed = System.nanoTime() - startedAt;
+                latency.record(elapsed);
+                types.forEach(type -> latencyByType.computeIfAbsent(type,
+                        t -> metrics.histogram("firebase.writes.latency." + t)).record(elapsed));
+                if (error != null) {
+                    failures.incrementAndGet();
+                    logger.error("Firebase write of " + updates.size() + " paths failed: " + error.getMessage());
+                    written.forEach(future -> future.completeExceptionally(error.toException()));
+                } else {
+                    written.forEach(future -> future.complete(null));
+                }
+            });
+        } catch (DatabaseException e) {
+            // Invalid paths and values are rejected before anything is sent
+            failures.incrementAndGet();
+            logger.error("Firebase rejected a write of " + updates.size() + " paths: " + e.getMessage());
+            written.forEach(future -> future.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * Checks whether the path is an ancestor or a descendant of a collected path.
+     */
+    private boolean overlapsCollected(String path) {
+        for (int slash = path.indexOf('/'); slash >= 0; slash = path.indexOf('/', slash + 1)) {
+            if (collected.containsKey(path.substring(0, slash))) {
+                return true;
+            }
+        }
+        String descendant = collected.ceilingKey(path + "/");
+        return descendant != null && descendant.startsWith(path + "/");
+    }
+
+    /**
+     * The kind of data at a path: the field of a pull request such as `status` or `hunkApprovals`,
+     * or the top-level node for other data such as `tracking`.
+     */
+    static String pathType(String path) {
+        String[] parts = path.split("/");
+        if (parts.length > 4 && "pulls".equals(parts[2])) {
+            return PULL_REQUEST_FIELDS.contains(parts[4]) ? parts[4] : "other";
+        }
+        return TOP_LEVEL_NODES.contains(parts[0]) ? parts[0] : "other";
+    }
+
+    private static double ratio(long numerator, long denominator) {
+        return denominator == 0 ? 0.0 : (double) numerator / denominator;
+    }
+
+    /**
+     * A write that waits for budget
+     */
+    private static class Queued {
+        final Map<String, Object> updates;
+        final int permits;
+        final CompletableFuture<Void> written;
+
+        Queued(Map<String, Object> updates, int permits, CompletableFuture<Void> written) {
+            this.updates = updates;
+            this.permits = permits;
+            this.written = written;
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package previewcode.backend.services;
+
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import previewcode.backend.api.exceptionmapper.GitHubApiException;
+import previewcode.backend.services.GitHubRateLimiter.Priority;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Executes requests against the GitHub API on the shared HTTP client.
+ *
+ * Calls are dispatched asynchronously and complete their future from the callback of the HTTP client,
+ * so no thread is parked while waiting for GitHub.
+ * GET requests are sent conditionally when an earlier response is cached in the {@link ConditionalRequestCache}.
+ * Identical GET requests that are made while one of them is in flight share its call and its decoded result.
+ *
+ * Every request is paced by the {@link GitHubRateLimiter}. Urgent requests fail when they would have to wait
+ * too long for the rate limit budget, deferrable requests are queued until the budget allows them.
+ * The queue is held in memory and bounded: once it is full, requests that would have to wait fail right away
+ * with `503 Service Unavailable`, and queued requests are lost on a restart.
+ */
+@Singleton
+public class GitHubApiClient {
+
+    private static final Logger logger = LoggerFactory.getLogger(GitHubApiClient.class);
+
+    /**
+     * Urgent requests that would have to wait longer than this for the rate limit budget fail instead.
+     */
+    private static final long MAX_URGENT_WAIT_MILLIS = 5000;
+
+    /**
+     * The number of times a deferrable request is sent before a rate limit response is returned to the caller.
+     */
+    private static final int MAX_DEFERRABLE_ATTEMPTS = 5;
+
+    private final OkHttpClient httpClient;
+    private final ConditionalRequestCache responseCache;
+    private final GitHubRateLimiter rateLimiter;
+    private final int maxQueued;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("github-rate-limit-%d").setDaemon(true).build());
+
+    private final ConcurrentMap<InFlightKey, CompletableFuture<?>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong deduplicated = new AtomicLong();
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong paced = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+
+    @Inject
+    public GitHubApiClient(OkHttpClient httpClient,
+                           ConditionalRequestCache responseCache,
+                           GitHubRateLimiter rateLimiter,
+                           @Named("github.rateLimit.maxQueued") int maxQueued,
+                           MetricsService metrics) {
+        this.httpClient = httpClient;
+        this.responseCache = responseCache;
+        this.rateLimiter = rateLimiter;
+        this.maxQueued = maxQueued;
+
+        metrics.register("github.coalescing.deduplicated", deduplicated::get);
+        metrics.register("github.coalescing.inFlight", inFlight::size);
+        metrics.register("github.rateLimit.queued", queued::get);
+        metrics.register("github.rateLimit.paced", paced::get);
+        metrics.register("github.rateLimit.rejected", rejected::get);
+        metrics.register("github.rateLimit.dropped", dropped::get);
+        metrics.register("github.rateLimit.retried", retried::get);
+    }
+
+    /**
+     * Executes a GET request, conditionally if an earlier response to it is cached.
+     * When GitHub answers with `304 Not Modified`, the cached decoded body is returned.
+     *
+     * If the same request with the same credentials is already in flight, no new call is made
+     * and the result of that call is shared. The result must therefore not be modified by the caller.
+     *
+     * @param request The request to execute
+     * @param decoder The decoder for the body of the response
+     * @return The decoded body, or a {@link GitHubApiException} if GitHub did not respond successfully.
+     */
+    public <T> CompletableFuture<T> get(Request request, ResponseDecoder<T> decoder) {
+        InFlightKey key = new InFlightKey(request, decoder);
+        CompletableFuture<T> shared = new CompletableFuture<>();
+
+        @SuppressWarnings("unchecked")
+        CompletableFuture<T> current = (CompletableFuture<T>) inFlight.putIfAbsent(key, shared);
+        if (current != null) {
+            deduplicated.incrementAndGet();
+            // Callers get their own stage, so one of them cannot complete the call for the others
+            return current.thenApply(Function.identity());
+        }
+
+        this.fetch(request, decoder).whenComplete((value, error) -> {
+            // Leave the map first, so no caller joins a call that has already completed
+            inFlight.remove(key, shared);
+            if (error != null) {
+                shared.completeExceptionally(error);
+            } else {
+                shared.complete(value);
+            }
+        });
+        return shared.thenApply(Function.identity());
+    }
+
+    private <T> CompletableFuture<T> fetch(Request request, ResponseDecoder<T> decoder) {
+        ConditionalRequestCache.Entry cached = responseCache.lookup(request, decoder);
+        Request conditional = cached == null ? request : cached.conditional(request);
+
+        return this.enqueue(conditional, Priority.URGENT, response -> {
+            if (cached != null && response.code() == 304) {
+                logger.debug("Serving not modified response from cache");
+                responseCache.hit(cached);
+                return cached.value();
+            }
+            CountingInputStream body = new CountingInputStream(successfulBody(response));
+            T value = decoder.decode(body);
+            // The decoder may have stopped early, so prefer the announced length of the body
+            long size = response.body().contentLength() >= 0 ? response.body().contentLength() : body.getCount();
+            responseCache.store(request, response, decoder, value, (int) Math.min(size, Integer.MAX_VALUE));
+            return value;
+        });
+    }
+
+    /**
+     * Executes a request that modifies data on GitHub. The response is never cached.
+     *
+     * @param request The request to execute
+     * @param decoder The decoder for the body of the response
+     * @return The decoded body, or a {@link GitHubApiException} if GitHub did not respond successfully.
+     */
+    public <T> CompletableFuture<T> send(Request request, ResponseDecoder<T> decoder) {
+        return this.send(request, decoder, Priority.URGENT);
+    }
+
+    /**
+     * Executes a request that modifies data on GitHub. The response is never cached.
+     *
+     * @param request The request to execute
+     * @param decoder The decoder for the body of the response
+     * @param priority Whether the request may be queued when the rate limit budget is exhausted
+     * @return The decoded body, or a {@link GitHubApiException} if GitHub did not respond successfully.
+     */
+    public <T> CompletableFuture<T> send(Request request, ResponseDecoder<T> decoder, Priority priority) {
+        return this.enqueue(request, priority, response -> decoder.decode(successfulBody(response)));
+    }
+
+    /**
+     * Waits for the result of a call, for callers that cannot continue asynchronously.
+     *
+     * @throws IOException when the call failed.
+     */
+    public static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for GitHub");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private <T> CompletableFuture<T> enqueue(Request request, Priority priority, ResponseHandler<T> handler) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        this.dispatch(request, priority, handler, future, 1);
+        return future;
+    }
+
+    /**
+     * Sends the request as soon as the rate limit budget allows it, unless too many requests are waiting already.
+     * A request that is refused takes no slot of the budget, so it does not delay the requests that follow.
+     */
+    private <T> void dispatch(Request request, Priority priority, ResponseHandler<T> handler,
+                              CompletableFuture<T> future, int attempt) {
+        long maxWait = priority == Priority.URGENT ? MAX_URGENT_WAIT_MILLIS : Long.MAX_VALUE;
+        long expected = rateLimiter.peek(request);
+        if (expected > maxWait) {
+            this.reject(future, expected);
+            return;
+        }
+        // A request that is expected to wait takes its place in the queue before it takes a slot
+        boolean waiting = expected > 0;
+        if (waiting && queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            logger.warn("Dropping " + request.method() + " " + request.url().encodedPath()
+                    + ", " + maxQueued + " requests are waiting for the rate limit already");
+            future.completeExceptionally(new GitHubApiException(
+                    "Too many requests are waiting for the rate limit, try again later", 503));
+            return;
+        }
+
+        // The budget may have changed since the peek
+        long wait = rateLimiter.reserve(request, maxWait);
+        if (wait > maxWait) {
+            if (waiting) {
+                queued.decrementAndGet();
+            }
+            this.reject(future, wait);
+        } else if (wait <= 0) {
+            if (waiting) {
+                queued.decrementAndGet();
+            }
+            this.call(request, priority, handler, future, attempt);
+        } else {
+            if (!waiting) {
+                queued.incrementAndGet();
+            }
+            logger.debug("Delaying request by " + wait + "ms to stay within the rate limit");
+            paced.incrementAndGet();
+            scheduler.schedule(() -> {
+                queued.decrementAndGet();
+                this.call(request, priority, handler, future, attempt);
+            }, wait, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void reject(CompletableFuture<?> future, long wait) {
+        rejected.incrementAndGet();
+        future.completeExceptionally(new GitHubApiException(
+                "Rate limit exhausted, try again in " + TimeUnit.MILLISECONDS.toSeconds(wait) + " seconds", 403));
+    }
+
+    private <T> void call(Request request, Priority priority, ResponseHandler<T> handler,
+                          CompletableFuture<T> future, int attempt) {
+        logger.debug("[OKHTTP3] Enqueueing request: " + request);
+        if (request.header("Authorization") != null) {
+            logger.debug("With Authorization hashcode: " + request.header("Authorization").hashCode());
+        }
+
+        httpClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (Response r = response) {
+                    boolean rateLimited = rateLimiter.observe(request, r);
+                    if (rateLimited && priority == Priority.DEFERRABLE && attempt < MAX_DEFERRABLE_ATTEMPTS) {
+                        logger.info("Request was rate limited by GitHub, queueing it again");
+                        retried.incrementAndGet();
+                        dispatch(request, priority, handler, future, attempt + 1);
+                        return;
+                    }
+                    future.complete(handler.handle(r));
+                } catch (IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Opens the body of a successful response as a stream.
+     * The body of an unsuccessful response is small and read completely into the exception instead.
+     */
+    private static InputStream successfulBody(Response response) throws IOException {
+        if (response.isSuccessful()) {
+            return response.body().byteStream();
+        } else {
+            throw new GitHubApiException(response.body().string(), response.code());
+        }
+    }
+
+    private interface ResponseHandler<T> {
+        T handle(Response response) throws IOException;
+    }
+
+    /**
+     * Identifies a GET request by everything that determines its decoded result.
+     */
+    private static class InFlightKey {
+        final String url;
+        final String authorization;
+        final String accept;
+        final ResponseDecoder<?> decoder;
+
+        InFlightKey(Request request, ResponseDecoder<?> decoder) {
+            this.url = request.url().toString();
+            this.authorization = request.header("Authorization");
+            this.accept = request.header("Accept");
+            this.decoder = decoder;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            InFlightKey that = (InFlightKey) o;
+            return url.equals(that.url)
+                    && Objects.equals(authorization, that.authorization)
+                    && Objects.equals(accept, that.accept)
+                    && decoder == that.decoder;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(url, authorization, accept, System.identityHashCode(decoder));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package previewcode.backend.services;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import previewcode.backend.DTO.GitHubPullRequest;
+import previewcode.backend.DTO.GitHubUser;
+
+import java.util.Optional;
+
+/**
+ * Caches facts about pull requests that never change once the pull request exists,
+ * such as its author. These facts are learned from webhook payloads and from pull requests fetched from GitHub,
+ * so checks like ownership do not need to ask GitHub again.
+ */
+@Singleton
+public class GitHubMetadataCache {
+
+    private static final long MAX_PULL_REQUESTS = 50_000;
+
+    private final Cache<String, PullRequestFacts> pullRequests = CacheBuilder.newBuilder()
+            .maximumSize(MAX_PULL_REQUESTS)
+            .recordStats()
+            .build();
+
+    @Inject
+    public GitHubMetadataCache(MetricsService metrics) {
+        metrics.register("github.metadata.pullRequests.hits", () -> pullRequests.stats().hitCount());
+        metrics.register("github.metadata.pullRequests.misses", () -> pullRequests.stats().missCount());
+        metrics.register("github.metadata.pullRequests.size", pullRequests::size);
+    }
+
+    /**
+     * Get the immutable facts of a pull request, if they are known.
+     *
+     * @param owner The owner of the base repository
+     * @param name The name of the base repository
+     * @param number The number of the pull request
+     */
+    public Optional<PullRequestFacts> getPullRequest(String owner, String name, int number) {
+        return Optional.ofNullable(pullRequests.getIfPresent(key(owner, name, number)));
+    }
+
+    /**
+     * Remember the immutable facts of a pull request.
+     *
+     * @param owner The owner of the base repository
+     * @param name The name of the base repository
+     * @param pullRequest The pull request as received from GitHub
+     */
+    public void rememberPullRequest(String owner, String name, GitHubPullRequest pullRequest) {
+        if (pullRequest.user != null && pullRequest.number != null) {
+            this.rememberPullRequest(owner, name, pullRequest.number, pullRequest.user);
+        }
+    }
+
+    /**
+     * Remember the immutable facts of a pull request.
+     *
+     * @param owner The owner of the base repository
+     * @param name The name of the base repository
+     * @param number The number of the pull request
+     * @param author The user that opened the pull request
+     */
+    public void rememberPullRequest(String owner, String name, int number, GitHubUser author) {
+        pullRequests.put(key(owner, name, number),
+                new PullRequestFacts(owner.toLowerCase(), name.toLowerCase(), number, author.login, author.id));
+    }
+
+    private static String key(String owner, String name, int number) {
+        return owner.toLowerCase() + "/" + name.toLowerCase() + "/" + number;
+    }
+
+    /**
+     * The facts of a pull request that never change.
+     */
+    public static class PullRequestFacts {
+        /**
+         * The owner of the base repository
+         */
+        public final String owner;
+
+        /**
+         * The name of the base repository
+         */
+        public final String name;
+
+        /**
+         * The number of the pull request
+         */
+        public final int number;
+
+        /**
+         * The login of the user that opened the pull request
+         */
+        public final String authorLogin;
+
+        /**
+         * The id of the user that opened the pull request
+         */
+        public final Integer authorId;
+
+        public PullRequestFacts(String owner, String name, int number, String authorLogin, Integer authorId) {
+            this.owner = owner;
+            this.name = name;
+            this.number = number;
+            this.authorLogin = authorLogin;
+            this.authorId = authorId;
+        }
+
+        public boolean isAuthor(String login) {
+            return authorLogin.equals(login);
+        }
+    }
+}
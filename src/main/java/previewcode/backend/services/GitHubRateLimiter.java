@@ -0,0 +1,202 @@
+package previewcode.backend.services;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the GitHub rate limit budget of every token and installation,
+ * and decides how long outbound requests have to wait to make the budget last until it resets.
+ *
+ * The budget is read from the `X-RateLimit-Remaining` and `X-RateLimit-Reset` headers of every response.
+ * When GitHub imposes a secondary rate limit, the `Retry-After` header blocks the scope until it expires.
+ * Once the remaining budget drops below {@link #PACING_THRESHOLD}, requests are spread evenly over the
+ * time left until the reset.
+ */
+@Singleton
+public class GitHubRateLimiter {
+
+    /**
+     * Requests are paced once fewer than this many requests remain in the budget.
+     */
+    static final int PACING_THRESHOLD = 500;
+
+    /**
+     * The priority of a request determines what happens when the budget is exhausted.
+     */
+    public enum Priority {
+        /**
+         * Requests a user is waiting for. They wait for a short while at most, and fail after that.
+         */
+        URGENT,
+        /**
+         * Writes nobody waits for, like status updates and bot comments.
+         * They are queued until the budget allows them, and retried when GitHub rate limits them anyway.
+         */
+        DEFERRABLE
+    }
+
+    private final Cache<String, String> labels = CacheBuilder.newBuilder()
+            .expireAfterAccess(2, TimeUnit.HOURS)
+            .build();
+
+    private final Cache<String, Budget> budgets = CacheBuilder.newBuilder()
+            .expireAfterAccess(2, TimeUnit.HOURS)
+            .build();
+
+    @Inject
+    public GitHubRateLimiter(MetricsService metrics) {
+        metrics.register("github.rateLimit.remaining", this::remainingPerScope);
+    }
+
+    /**
+     * Names the scope of an authorization, so requests made with different tokens of the same
+     * installation or user share one budget, and the budget is reported under a readable name.
+     *
+     * @param authorization The value of the `Authorization` header
+     * @param label The name of the scope, e.g. `installation/1234`
+     */
+    public void label(String authorization, String label) {
+        labels.put(hash(authorization), label);
+    }
+
+    /**
+     * Tells how long the request would have to wait, without reserving a slot for it.
+     *
+     * @return The number of milliseconds the request would have to wait before it may be sent.
+     */
+    public long peek(Request request) {
+        // No request waits less than nothing, so no slot is reserved
+        return this.budgetOf(request).reserve(System.currentTimeMillis(), -1);
+    }
+
+    /**
+     * Reserves a slot for sending the request, unless it would have to wait longer than the given time.
+     *
+     * @param maxWait The longest time in milliseconds the request may wait for its slot
+     * @return The number of milliseconds the request has to wait before it may be sent.
+     *         No slot is reserved when this is more than `maxWait`.
+     */
+    public long reserve(Request request, long maxWait) {
+        return this.budgetOf(request).reserve(System.currentTimeMillis(), maxWait);
+    }
+
+    /**
+     * Updates the budget of the scope of the request with the rate limit headers of the response.
+     *
+     * @return whether GitHub refused the request because a rate limit was exceeded.
+     */
+    public boolean observe(Request request, Response response) {
+        Budget budget = this.budgetOf(request);
+        Integer remaining = parseInt(response.header("X-RateLimit-Remaining"));
+        Long reset = parseLong(response.header("X-RateLimit-Reset"));
+        Long retryAfter = parseLong(response.header("Retry-After"));
+
+        long now = System.currentTimeMillis();
+        if (remaining != null && reset != null) {
+            budget.update(remaining, TimeUnit.SECONDS.toMillis(reset));
+        }
+        if (retryAfter != null) {
+            budget.blockUntil(now + TimeUnit.SECONDS.toMillis(retryAfter));
+        }
+
+        boolean refused = response.code() == 403 || response.code() == 429;
+        return refused && (retryAfter != null || (remaining != null && remaining == 0));
+    }
+
+    private Budget budgetOf(Request request) {
+        String authorization = request.header("Authorization");
+        String scope = authorization == null ? "anonymous" : this.scopeOf(authorization);
+        try {
+            return budgets.get(scope, () -> new Budget(scope));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String scopeOf(String authorization) {
+        String hash = hash(authorization);
+        String label = labels.getIfPresent(hash);
+        return label != null ? label : "token/" + hash.substring(0, 12);
+    }
+
+    private Map<String, Integer> remainingPerScope() {
+        Map<String, Integer> remaining = new TreeMap<>();
+        budgets.asMap().forEach((scope, budget) -> remaining.put(scope, budget.remaining));
+        return remaining;
+    }
+
+    private static String hash(String authorization) {
+        return Hashing.sha256().hashString(authorization, StandardCharsets.UTF_8).toString();
+    }
+
+    private static Integer parseInt(String header) {
+        return header == null ? null : Ints.tryParse(header.trim());
+    }
+
+    private static Long parseLong(String header) {
+        return header == null ? null : Longs.tryParse(header.trim());
+    }
+
+    /**
+     * The rate limit budget of a single scope.
+     */
+    private static class Budget {
+        final String scope;
+
+        /**
+         * The number of requests left until the reset, or -1 if unknown.
+         */
+        volatile int remaining = -1;
+        long resetAt;
+        long blockedUntil;
+
+        /**
+         * The earliest time the next paced request may be sent.
+         */
+        long nextSlot;
+
+        Budget(String scope) {
+            this.scope = scope;
+        }
+
+        synchronized void update(int remaining, long resetAt) {
+            this.remaining = remaining;
+            this.resetAt = resetAt;
+        }
+
+        synchronized void blockUntil(long time) {
+            this.blockedUntil = Math.max(this.blockedUntil, time);
+        }
+
+        synchronized long reserve(long now, long maxWait) {
+            long sendAt = Math.max(now, blockedUntil);
+            if (remaining >= 0 && resetAt > sendAt) {
+                if (remaining == 0) {
+                    sendAt = resetAt;
+                } else if (remaining < PACING_THRESHOLD) {
+                    long spacing = (resetAt - sendAt) / remaining;
+                    sendAt = Math.max(sendAt, nextSlot);
+                    if (sendAt - now <= maxWait) {
+                        nextSlot = sendAt + spacing;
+                        // Assume the request is granted until GitHub reports otherwise
+                        remaining--;
+                    }
+                }
+            }
+            return sendAt - now;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package previewcode.backend.services;
+
+import org.kohsuke.github.GitHub;
+
+/**
+ * A validated GitHub connection on behalf of an app user,
+ * together with the identity of that user.
+ */
+public class GitHubSession {
+
+    /**
+     * The connection to GitHub, authenticated with the OAuth token of the user
+     */
+    public final GitHub github;
+
+    /**
+     * The login name of the user
+     */
+    public final String login;
+
+    /**
+     * The id of the user
+     */
+    public final int id;
+
+    public GitHubSession(GitHub github, String login, int id) {
+        this.github = github;
+        this.login = login;
+        this.id = id;
+    }
+}
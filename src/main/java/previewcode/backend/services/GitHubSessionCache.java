@@ -0,0 +1,136 @@
+package previewcode.backend.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.kohsuke.github.GitHub;
+import org.kohsuke.github.GitHubBuilder;
+import org.kohsuke.github.HttpConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import previewcode.backend.api.exceptionmapper.GitHubApiException;
+
+import javax.ws.rs.NotAuthorizedException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches validated GitHub sessions of app users, keyed by a hash of their OAuth token.
+ *
+ * A session is validated once by fetching the authenticated user from GitHub,
+ * after which it is reused until it expires or until GitHub rejects the token.
+ */
+@Singleton
+public class GitHubSessionCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(GitHubSessionCache.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static final String AUTHORIZATION_PREFIX = "token ";
+    private static final long MAX_SESSIONS = 10_000;
+    private static final long SESSION_TTL_MINUTES = 10;
+
+    private final Cache<String, GitHubSession> sessions = CacheBuilder.newBuilder()
+            .maximumSize(MAX_SESSIONS)
+            .expireAfterWrite(SESSION_TTL_MINUTES, TimeUnit.MINUTES)
+            .recordStats()
+            .build();
+
+    private final OkHttpClient httpClient;
+    private final HttpConnector connector;
+    private final GitHubRateLimiter rateLimiter;
+
+    @Inject
+    public GitHubSessionCache(OkHttpClient httpClient,
+                              HttpConnector connector,
+                              GitHubRateLimiter rateLimiter,
+                              MetricsService metrics) {
+        this.httpClient = httpClient;
+        this.connector = connector;
+        this.rateLimiter = rateLimiter;
+
+        metrics.register("github.sessions.hits", () -> sessions.stats().hitCount());
+        metrics.register("github.sessions.misses", () -> sessions.stats().missCount());
+        metrics.register("github.sessions.evictions", () -> sessions.stats().evictionCount());
+        metrics.register("github.sessions.size", sessions::size);
+    }
+
+    /**
+     * Get the session for the given OAuth token, validating the token with GitHub if it is not cached.
+     * Concurrent requests with the same uncached token share a single validation call.
+     *
+     * @param token The OAuth token of the user
+     * @return The validated session
+     * @throws NotAuthorizedException when GitHub rejects the token.
+     * @throws IOException when the call to GitHub fails.
+     */
+    public GitHubSession getSession(String token) throws IOException {
+        try {
+            return sessions.get(hash(token), () -> this.connect(token));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    /**
+     * Removes the session of the given token, for example because GitHub no longer accepts it.
+     */
+    public void invalidate(String token) {
+        sessions.invalidate(hash(token));
+    }
+
+    /**
+     * Removes the session belonging to the value of an `Authorization` header, if it carries an OAuth token.
+     */
+    public void invalidateAuthorization(String authorization) {
+        if (authorization != null && authorization.startsWith(AUTHORIZATION_PREFIX)) {
+            logger.info("GitHub rejected a cached session, invalidating it");
+            this.invalidate(authorization.substring(AUTHORIZATION_PREFIX.length()));
+        }
+    }
+
+    private GitHubSession connect(String token) throws IOException {
+        logger.debug("Validating OAuth token with: " + token.hashCode());
+        Request getUser = new Request.Builder()
+                .url("https://api.github.com/user")
+                .header("Authorization", AUTHORIZATION_PREFIX + token)
+                .get()
+                .build();
+
+        try (Response response = httpClient.newCall(getUser).execute()) {
+            String body = response.body().string();
+            if (response.code() == 401) {
+                throw new NotAuthorizedException("GitHub did not accept the OAuth token");
+            } else if (!response.isSuccessful()) {
+                throw new GitHubApiException(body, response.code());
+            }
+            JsonNode user = mapper.readTree(body);
+            GitHub github = new GitHubBuilder()
+                    .withOAuthToken(token)
+                    .withConnector(connector)
+                    .build();
+            String login = user.get("login").asText();
+            rateLimiter.label(AUTHORIZATION_PREFIX + token, "user/" + login);
+            return new GitHubSession(github, login, user.get("id").asInt());
+        }
+    }
+
+    private static String hash(String token) {
+        return Hashing.sha256().hashString(token, StandardCharsets.UTF_8).toString();
+    }
+}
@@ -0,0 +1,208 @@
+package previewcode.backend.services;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import previewcode.backend.DTO.InstallationToken;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the access tokens of GitHub Integration Installations.
+ *
+ * Tokens are minted at most once per installation until they are about to expire.
+ * Concurrent requests for the same installation share a single in-flight call to GitHub.
+ * Tokens of installations that were used since they were minted are refreshed in the background
+ * shortly before they expire, tokens of idle installations are dropped instead.
+ */
+@Singleton
+public class InstallationTokenCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(InstallationTokenCache.class);
+    private static final ResponseDecoder<InstallationToken> INSTALLATION_TOKEN =
+            ResponseDecoder.json(InstallationToken.class);
+    private static final RequestBody EMPTY_REQUEST_BODY = RequestBody.create(null, new byte[]{});
+
+    /**
+     * Tokens that expire within this duration are never handed out.
+     */
+    private static final Duration MIN_VALIDITY = Duration.ofMinutes(1);
+
+    /**
+     * Tokens are refreshed in the background this long before they expire.
+     */
+    private static final Duration REFRESH_MARGIN = Duration.ofMinutes(5);
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("installation-token-refresh-%d").setDaemon(true).build());
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private final GitHubApiClient api;
+    private final GitHubRateLimiter rateLimiter;
+    private final Algorithm jwtSigningAlgorithm;
+    private final String integrationId;
+
+    @Inject
+    public InstallationTokenCache(GitHubApiClient api,
+                                  GitHubRateLimiter rateLimiter,
+                                  Algorithm jwtSigningAlgorithm,
+                                  @Named("integration.id") String integrationId,
+                                  MetricsService metrics) {
+        this.api = api;
+        this.rateLimiter = rateLimiter;
+        this.jwtSigningAlgorithm = jwtSigningAlgorithm;
+        this.integrationId = integrationId;
+
+        metrics.register("github.installationTokens.hits", hits::get);
+        metrics.register("github.installationTokens.misses", misses::get);
+        metrics.register("github.installationTokens.refreshes", refreshes::get);
+        metrics.register("github.installationTokens.failures", failures::get);
+        metrics.register("github.installationTokens.size", entries::size);
+    }
+
+    /**
+     * Get an access token for the given installation, minting a new one only if no valid token is cached.
+     *
+     * @param installationId The id of the installation
+     * @return An access token that is valid for at least another minute
+     * @throws IOException when the call to GitHub fails.
+     */
+    public String getToken(String installationId) throws IOException {
+        Entry[] minted = new Entry[1];
+        Entry entry = entries.compute(installationId, (id, current) -> {
+            if (current != null && current.isUsable()) {
+                hits.incrementAndGet();
+                return current;
+            }
+            misses.incrementAndGet();
+            minted[0] = new Entry(this.authenticateInstallation(id));
+            return minted[0];
+        });
+        if (minted[0] != null) {
+            this.track(installationId, minted[0]);
+        }
+        entry.used = true;
+        return GitHubApiClient.await(entry.token).token;
+    }
+
+    /**
+     * Removes a freshly minted entry from the cache if minting fails,
+     * and schedules its background refresh if it succeeds.
+     */
+    private void track(String installationId, Entry entry) {
+        entry.token.whenComplete((token, error) -> {
+            if (error != null) {
+                failures.incrementAndGet();
+                entries.remove(installationId, entry);
+            } else {
+                scheduleRefresh(installationId, entry, token);
+            }
+        });
+    }
+
+    private void scheduleRefresh(String installationId, Entry entry, InstallationToken token) {
+        long delay = Duration.between(Instant.now(), token.expiresAt.minus(REFRESH_MARGIN)).toMillis();
+        refresher.schedule(() -> refresh(installationId, entry), Math.max(delay, 0), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Replaces the token of a recently used installation by a fresh one.
+     * The current token keeps being served until the new one has arrived.
+     */
+    private void refresh(String installationId, Entry entry) {
+        if (!entry.used) {
+            logger.debug("Dropping token of idle installation {" + installationId + "}");
+            entries.remove(installationId, entry);
+            return;
+        }
+
+        logger.debug("Refreshing token of installation {" + installationId + "}");
+        refreshes.incrementAndGet();
+        Entry fresh = new Entry(this.authenticateInstallation(installationId));
+        fresh.token.whenComplete((token, error) -> {
+            if (error != null) {
+                failures.incrementAndGet();
+                logger.warn("Failed to refresh token of installation {" + installationId + "}:", error);
+            } else if (entries.replace(installationId, entry, fresh)) {
+                scheduleRefresh(installationId, fresh, token);
+            }
+        });
+    }
+
+    /**
+     * Authenticate against the GitHub Integrations API and fetch a token for the given Installation.
+     */
+    private CompletableFuture<InstallationToken> authenticateInstallation(String installationId) {
+        Calendar calendar = Calendar.getInstance();
+        Date now = calendar.getTime();
+        calendar.add(Calendar.MINUTE, 10);
+        Date exp = calendar.getTime();
+
+        String integrationToken = JWT.create()
+                .withIssuedAt(now)
+                .withExpiresAt(exp)
+                .withIssuer(integrationId)
+                .sign(jwtSigningAlgorithm);
+
+        logger.info("Authenticating installation {" + installationId + "} as integration {" + integrationId + "}");
+
+        Request request = new Request.Builder()
+                .url("https://api.github.com/installations/" + installationId + "/access_tokens")
+                .addHeader("Accept", "application/vnd.github.machine-man-preview+json")
+                .addHeader("Authorization", "Bearer " + integrationToken)
+                .post(EMPTY_REQUEST_BODY)
+                .build();
+
+        rateLimiter.label("Bearer " + integrationToken, "integration/" + integrationId);
+        return api.send(request, INSTALLATION_TOKEN).thenApply(token -> {
+            rateLimiter.label("token " + token.token, "installation/" + installationId);
+            return token;
+        });
+    }
+
+    private static class Entry {
+        final CompletableFuture<InstallationToken> token;
+
+        /**
+         * Whether the token was handed out since it was minted.
+         */
+        volatile boolean used;
+
+        Entry(CompletableFuture<InstallationToken> token) {
+            this.token = token;
+        }
+
+        /**
+         * @return whether the entry is still being minted or holds a token that is not about to expire.
+         */
+        boolean isUsable() {
+            if (!token.isDone()) {
+                return true;
+            }
+            return !token.isCompletedExceptionally() && token.join().isValidFor(MIN_VALIDITY);
+        }
+    }
+}
@@ -0,0 +1,482 @@
+package previewcode.backend.services;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import previewcode.backend.DTO.PullRequestIdentifier;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Stores the data of pull requests on the local disk, so the backend can run without Firebase.
+ *
+ * The data is kept in memory as a tree ordered like Firebase orders keys. Every committed batch is appended
+ * to a {@link MappedLog} before it is applied, and the log is forced to disk at a fixed interval.
+ * A commit completes once the batch is appended, before it is forced: it survives a crash of the process,
+ * but the batches of the last flush interval may be lost when the machine crashes.
+ * When the log is full, a snapshot of the tree starts a new log file and the old one is deleted.
+ * At startup, the newest log is replayed.
+ */
+@Singleton
+public class LocalStorageService implements StorageService {
+
+    private static final Logger logger = LoggerFactory.getLogger(LocalStorageService.class);
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final TypeReference<Map<String, Object>> RECORD_TYPE =
+            new TypeReference<Map<String, Object>>() {};
+
+    private static final String LOG_PREFIX = "storage-";
+    private static final String LOG_SUFFIX = ".log";
+
+    /**
+     * The payload of a record is JSON that maps paths to the values written there.
+     * The first record of every log file is a snapshot that writes the whole tree to the root path.
+     */
+    private static final int HEADER_SIZE = MappedLog.HEADER_SIZE;
+
+    /**
+     * Keys that are 32-bit integers come first in numeric order, the others follow in lexicographic order.
+     */
+    private static final Comparator<String> KEY_ORDER = (a, b) -> {
+        Long x = index(a);
+        Long y = index(b);
+        if (x != null && y != null) {
+            return Long.compare(x, y);
+        } else if (x != null) {
+            return -1;
+        } else if (y != null) {
+            return 1;
+        }
+        return a.compareTo(b);
+    };
+
+    private final Path directory;
+    private final int logSize;
+
+    private TreeMap<String, Object> root = new TreeMap<>(KEY_ORDER);
+    private long generation;
+    private MappedLog log;
+
+    private final List<Watch> watches = new CopyOnWriteArrayList<>();
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("local-storage-flush-%d").setDaemon(true).build());
+    private final ExecutorService events = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("local-storage-events-%d").setDaemon(true).build());
+
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong paths = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+    private final MetricsService.Timer commitTime;
+
+    @Inject
+    public LocalStorageService(@Named("storage.local.directory") String directory,
+                               @Named("storage.local.logSize") int logSize,
+                               @Named("storage.local.flushInterval") int flushIntervalMillis,
+                               MetricsService metrics,
+                               ShutdownRegistry shutdown) throws IOException {
+        this.directory = Paths.get(directory);
+        this.logSize = logSize;
+        this.recover();
+
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+
+        metrics.register("storage.local.commits", commits::get);
+        metrics.register("storage.local.paths", paths::get);
+        metrics.register("storage.local.compactions", compactions::get);
+        metrics.register("storage.local.logBytes", this::logPosition);
+        metrics.register("storage.local.watches", watches::size);
+        this.commitTime = metrics.timer("storage.local.commitTime");
+
+        shutdown.register(ShutdownRegistry.Phase.PERSISTENCE, "local storage", timeout -> {
+            flusher.shutdown();
+            this.flush();
+            events.shutdown();
+        });
+    }
+
+    @Override
+    public Batch batch() {
+        return new Batch();
+    }
+
+    @Override
+    public CompletableFuture<Void> addDefaultData(PullRequestIdentifier pullId) {
+        String statusPath = StorageService.pullPath(pullId.owner, pullId.name, pullId.number.toString()) + "/status";
+        synchronized (this) {
+            if (this.lookup(statusPath) != null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return this.commit(Collections.singletonMap(statusPath, FirebaseService.DEFAULT_STATUS));
+        }
+    }
+
+    @Override
+    public synchronized CompletableFuture<Object> update(String path, UnaryOperator<Object> update) {
+        return this.commit(Collections.singletonMap(path, update.apply(toPlain(this.lookup(path)))))
+                .thenApply(done -> {
+                    synchronized (this) {
+                        return toPlain(this.lookup(path));
+                    }
+                });
+    }
+
+    @Override
+    public synchronized CompletableFuture<Map<String, Object>> readRange(String path, String fromKey, String toKey) {
+        Map<String, Object> children = new LinkedHashMap<>();
+        Object parent = this.lookup(path);
+        if (parent instanceof TreeMap && KEY_ORDER.compare(fromKey, toKey) <= 0) {
+            @SuppressWarnings("unchecked")
+            TreeMap<String, Object> node = (TreeMap<String, Object>) parent;
+            node.subMap(fromKey, true, toKey, true).forEach((key, child) -> children.put(key, toPlain(child)));
+        }
+        return CompletableFuture.completedFuture(children);
+    }
+
+    @Override
+    public Subscription watch(String path, Consumer<Object> onChange, Consumer<Throwable> onError) {
+        Watch watch = new Watch(normalize(path), onChange);
+        watches.add(watch);
+        events.execute(() -> this.deliver(watch));
+        return () -> {
+            watch.cancelled = true;
+            watches.remove(watch);
+        };
+    }
+
+    /**
+     * Appends the updates to the log, applies them to the tree and notifies the watches they concern.
+     */
+    private synchronized CompletableFuture<Void> commit(Map<String, Object> updates) {
+        long startedAt = System.nanoTime();
+        Map<String, Object> normalized = new LinkedHashMap<>();
+        updates.forEach((path, value) ->
+                normalized.put(normalize(path), toTree(mapper.convertValue(value, Object.class))));
+        try {
+            this.append(mapper.writeValueAsBytes(normalized));
+        } catch (IOException | UncheckedIOException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        normalized.forEach(this::apply);
+
+        for (Watch watch : watches) {
+            if (normalized.keySet().stream().anyMatch(path -> related(watch.path, path))) {
+                events.execute(() -> this.deliver(watch));
+            }
+        }
+        commits.incrementAndGet();
+        paths.addAndGet(normalized.size());
+        commitTime.recordSince(startedAt);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private void deliver(Watch watch) {
+        Object value;
+        synchronized (this) {
+            value = toPlain(this.lookup(watch.path));
+        }
+        if (!watch.cancelled) {
+            watch.onChange.accept(value);
+        }
+    }
+
+    private Object lookup(String path) {
+        Object node = root;
+        for (String key : keys(path)) {
+            if (!(node instanceof TreeMap)) {
+                return null;
+            }
+            node = ((TreeMap<?, ?>) node).get(key);
+        }
+        return node;
+    }
+
+    /**
+     * Writes a value to a path of the tree, removing the parents that are left empty by a deletion.
+     */
+    @SuppressWarnings("unchecked")
+    private void apply(String path, Object value) {
+        List<String> keys = keys(path);
+        if (keys.isEmpty()) {
+            root = value instanceof TreeMap ? (TreeMap<String, Object>) value : new TreeMap<>(KEY_ORDER);
+            return;
+        }
+
+        List<TreeMap<String, Object>> nodes = new ArrayList<>();
+        TreeMap<String, Object> node = root;
+        nodes.add(node);
+        for (String key : keys.subList(0, keys.size() - 1)) {
+            Object child = node.get(key);
+            if (!(child instanceof TreeMap)) {
+                if (value == null) {
+                    return;
+                }
+                child = new TreeMap<String, Object>(KEY_ORDER);
+                node.put(key, child);
+            }
+            node = (TreeMap<String, Object>) child;
+            nodes.add(node);
+        }
+
+        String last = keys.get(keys.size() - 1);
+        if (value != null) {
+            node.put(last, value);
+            return;
+        }
+        node.remove(last);
+        for (int i = nodes.size() - 1; i > 0 && nodes.get(i).isEmpty(); i--) {
+            nodes.get(i - 1).remove(keys.get(i - 1));
+        }
+    }
+
+    /**
+     * Appends a record to the log, starting a new log with a snapshot if it does not fit.
+     */
+    private void append(byte[] payload) throws IOException {
+        if (!log.fits(payload.length)) {
+            this.compact(HEADER_SIZE + payload.length);
+        }
+        log.append(payload);
+    }
+
+    /**
+     * Starts a new log that holds a snapshot of the tree, and deletes the old log.
+     *
+     * @param reserve The space to leave for the record that did not fit
+     */
+    private void compact(int reserve) throws IOException {
+        byte[] snapshot = mapper.writeValueAsBytes(Collections.singletonMap("", root));
+        int size = (int) Math.min(Integer.MAX_VALUE,
+                Math.max(logSize, 2L * (HEADER_SIZE + snapshot.length) + reserve));
+        Path previous = log.path;
+        this.openLog(generation + 1, size);
+        log.append(snapshot);
+        log.flush();
+        Files.deleteIfExists(previous);
+        compactions.incrementAndGet();
+        logger.info("Compacted local storage into " + log.path + " (" + snapshot.length + " bytes)");
+    }
+
+    /**
+     * Forces the appended records to disk.
+     */
+    private void flush() {
+        MappedLog current;
+        synchronized (this) {
+            current = log;
+        }
+        current.flush();
+    }
+
+    /**
+     * Replays the newest log that starts with a valid snapshot, and starts a new log from it.
+     */
+    @SuppressWarnings("unchecked")
+    private void recover() throws IOException {
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, LOG_PREFIX + "*" + LOG_SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        // Log names hold the zero padded generation, so the newest log sorts last
+        files.sort(Collections.reverseOrder());
+
+        int replayed = 0;
+        for (Path file : files) {
+            List<ByteBuffer> records = MappedLog.open(file).records();
+            if (records.isEmpty()) {
+                // The snapshot was not completely written, the previous log is still intact
+                continue;
+            }
+            for (ByteBuffer record : records) {
+                byte[] json = new byte[record.remaining()];
+                record.get(json);
+                Map<String, Object> updates = mapper.readValue(json, RECORD_TYPE);
+                updates.forEach((path, value) -> this.apply(path, toTree(value)));
+            }
+            replayed = records.size();
+            generation = Long.parseLong(file.getFileName().toString()
+                    .substring(LOG_PREFIX.length(), file.getFileName().toString().length() - LOG_SUFFIX.length()));
+            break;
+        }
+
+        // The tree is written to a new log, the replayed log is then deleted with the others
+        byte[] snapshot = mapper.writeValueAsBytes(Collections.singletonMap("", root));
+        this.openLog(generation + 1, (int) Math.min(Integer.MAX_VALUE, Math.max(logSize, 2L * snapshot.length)));
+        log.append(snapshot);
+        log.flush();
+        for (Path file : files) {
+            Files.deleteIfExists(file);
+        }
+        logger.info("Local storage opened from " + replayed + " records in " + directory);
+    }
+
+    private void openLog(long generation, int size) throws IOException {
+        Path path = directory.resolve(String.format("%s%020d%s", LOG_PREFIX, generation, LOG_SUFFIX));
+        this.log = MappedLog.create(path, size);
+        this.generation = generation;
+    }
+
+    private synchronized long logPosition() {
+        return log.position();
+    }
+
+    /**
+     * Converts a plain value to the tree representation: maps and lists become ordered maps,
+     * integral numbers become longs, and empty maps, like `null`, mean the value is absent.
+     */
+    private static Object toTree(Object value) {
+        if (value instanceof Map || value instanceof List) {
+            TreeMap<String, Object> node = new TreeMap<>(KEY_ORDER);
+            if (value instanceof Map) {
+                ((Map<?, ?>) value).forEach((key, child) -> putChild(node, String.valueOf(key), child));
+            } else {
+                List<?> list = (List<?>) value;
+                for (int i = 0; i < list.size(); i++) {
+                    putChild(node, Integer.toString(i), list.get(i));
+                }
+            }
+            return node.isEmpty() ? null : node;
+        } else if (value instanceof Number) {
+            Number number = (Number) value;
+            if (number.doubleValue() == number.longValue()) {
+                return number.longValue();
+            }
+            return number.doubleValue();
+        }
+        return value;
+    }
+
+    private static void putChild(TreeMap<String, Object> node, String key, Object value) {
+        Object child = toTree(value);
+        if (child != null) {
+            node.put(key, child);
+        }
+    }
+
+    /**
+     * Converts a subtree to plain values like Firebase returns them: nodes with mostly integer keys become lists.
+     */
+    private static Object toPlain(Object node) {
+        if (!(node instanceof TreeMap)) {
+            return node;
+        }
+        TreeMap<?, ?> map = (TreeMap<?, ?>) node;
+        // Integer keys sort first, so all keys are integers when the first and last are
+        Long firstIndex = index((String) map.firstKey());
+        Long lastIndex = index((String) map.lastKey());
+        if (firstIndex != null && firstIndex >= 0 && lastIndex != null && lastIndex < 2L * map.size()) {
+            List<Object> list = new ArrayList<>(Collections.nCopies((int) (lastIndex + 1), null));
+            map.forEach((key, child) -> list.set(index((String) key).intValue(), toPlain(child)));
+            return list;
+        }
+        Map<String, Object> plain = new LinkedHashMap<>();
+        map.forEach((key, child) -> plain.put((String) key, toPlain(child)));
+        return plain;
+    }
+
+    /**
+     * @return the key as a number if it is a 32-bit integer without leading zeros, or `null` otherwise.
+     */
+    private static Long index(String key) {
+        int length = key.length();
+        int start = length > 0 && key.charAt(0) == '-' ? 1 : 0;
+        if (length == start || length - start > 10 || (key.charAt(start) == '0' && length - start > 1)) {
+            return null;
+        }
+        long value = 0;
+        for (int i = start; i < length; i++) {
+            char c = key.charAt(i);
+            if (c < '0' || c > '9') {
+                return null;
+            }
+            value = value * 10 + (c - '0');
+        }
+        value = start == 1 ? -value : value;
+        return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE ? value : null;
+    }
+
+    private static List<String> keys(String path) {
+        List<String> keys = new ArrayList<>();
+        for (String key : path.split("/")) {
+            if (!key.isEmpty()) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    private static String normalize(String path) {
+        return String.join("/", keys(path));
+    }
+
+    /**
+     * @return whether one path is the other, or an ancestor of it.
+     */
+    private static boolean related(String a, String b) {
+        return a.isEmpty() || b.isEmpty() || a.equals(b) || a.startsWith(b + "/") || b.startsWith(a + "/");
+    }
+
+    private static class Watch {
+        final String path;
+        final Consumer<Object> onChange;
+        volatile boolean cancelled;
+
+        Watch(String path, Consumer<Object> onChange) {
+            this.path = path;
+            this.onChange = onChange;
+        }
+    }
+
+    /**
+     * A batch that is appended to the log as a single record
+     */
+    public class Batch implements StorageService.Batch {
+
+        private final Map<String, Object> updates = new LinkedHashMap<>();
+
+        private Batch() {
+        }
+
+        @Override
+        public Batch set(String path, Object value) {
+            updates.put(path, value);
+            return this;
+        }
+
+        @Override
+        public CompletableFuture<Void> commit() {
+            return LocalStorageService.this.commit(updates);
+        }
+    }
+}
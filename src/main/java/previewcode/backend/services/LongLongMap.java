@@ -0,0 +1,135 @@
+package previewcode.backend.services;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from `long` keys to `long` values that keeps both in plain arrays, so no entry is ever boxed.
+ *
+ * Collisions are resolved by probing the next slots. Keys must not be 0, which marks a free slot.
+ * The map is not thread-safe.
+ */
+public class LongLongMap {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private long[] values;
+    private int mask;
+    private int size;
+
+    /**
+     * @param expectedSize The number of keys the map holds without growing
+     */
+    public LongLongMap(int expectedSize) {
+        int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, expectedSize * 2 - 1)) << 1);
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * @return The value of the key, or `missing` if the map has no such key.
+     */
+    public long get(long key, long missing) {
+        int slot = this.slot(key);
+        return keys[slot] == key ? values[slot] : missing;
+    }
+
+    public void put(long key, long value) {
+        // Claim first: it may grow the map, which replaces the values array
+        int slot = this.claim(key);
+        values[slot] = value;
+    }
+
+    /**
+     * Adds to the value of a key, which is 0 if the map has no such key yet.
+     */
+    public void add(long key, long delta) {
+        int slot = this.claim(key);
+        values[slot] += delta;
+    }
+
+    /**
+     * Raises the value of a key to the given value, if it is larger.
+     */
+    public void max(long key, long value) {
+        int slot = this.claim(key);
+        values[slot] = Math.max(values[slot], value);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, 0);
+        size = 0;
+    }
+
+    /**
+     * Calls the consumer with every key and its value, in no particular order.
+     */
+    public void forEach(EntryConsumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                consumer.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(long key, long value);
+    }
+
+    /**
+     * Finds the slot of a key, or the free slot where it would go.
+     */
+    private int slot(long key) {
+        if (key == 0) {
+            throw new IllegalArgumentException("0 is not a valid key");
+        }
+        int slot = mix(key) & mask;
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Finds the slot of a key, adding the key with value 0 if the map has no such key yet.
+     */
+    private int claim(long key) {
+        int slot = this.slot(key);
+        if (keys[slot] == 0) {
+            if ((size + 1) * 2 > keys.length) {
+                this.grow();
+                slot = this.slot(key);
+            }
+            keys[slot] = key;
+            size++;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldValues.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = this.slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int mix(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
@@ -0,0 +1,142 @@
+package previewcode.backend.services;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * A log file of checksummed records that is written through a memory mapping.
+ *
+ * A record is visible to the next process as soon as it is appended. The mapping is only forced to disk by
+ * {@link #flush()}, so the owner decides how often it pays for durability against a crash of the machine.
+ * Reading stops at the first record that is incomplete or corrupt, which is where a crash interrupted writing.
+ *
+ * Record layout: `[int size][int crc32][size bytes of payload]`, where the checksum covers the payload.
+ * Records are never empty, so the zeroed space after the last record is never read as a record.
+ *
+ * Appending is not thread-safe, the owner serializes appends. Flushing may happen concurrently with appends.
+ */
+class MappedLog {
+
+    static final int HEADER_SIZE = 8;
+
+    final Path path;
+    private final MappedByteBuffer buffer;
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    private MappedLog(Path path, MappedByteBuffer buffer) {
+        this.path = path;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Creates a log file of the given size to append records to.
+     */
+    static MappedLog create(Path path, int size) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+             FileChannel channel = file.getChannel()) {
+            return new MappedLog(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    /**
+     * Maps an existing log file to read its records.
+     */
+    static MappedLog open(Path path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r");
+             FileChannel channel = file.getChannel()) {
+            return new MappedLog(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @return whether a record with a payload of the given size fits in the rest of the log.
+     */
+    boolean fits(int payloadSize) {
+        return buffer.remaining() >= HEADER_SIZE + payloadSize;
+    }
+
+    void append(byte[] payload) {
+        this.append(payload.length, out -> out.put(payload));
+    }
+
+    /**
+     * Appends a record whose payload is written straight into the mapping, so it is not copied first.
+     *
+     * @param payloadSize The number of bytes the writer puts, at least one
+     * @param writer Puts exactly the payload into the buffer it is given
+     */
+    void append(int payloadSize, Consumer<ByteBuffer> writer) {
+        if (payloadSize <= 0) {
+            throw new IllegalArgumentException("Records must not be empty");
+        }
+        int start = buffer.position();
+        buffer.putInt(payloadSize).putInt(0);
+        writer.accept(buffer);
+        if (buffer.position() != start + HEADER_SIZE + payloadSize) {
+            throw new IllegalStateException("Expected a payload of " + payloadSize + " bytes, got "
+                    + (buffer.position() - start - HEADER_SIZE));
+        }
+        buffer.putInt(start + 4, checksum(buffer, start + HEADER_SIZE, payloadSize));
+        dirty.set(true);
+    }
+
+    /**
+     * Reads the payloads of the records up to the first record that is incomplete or corrupt.
+     * The payloads are views of the mapping, they are only copied by the caller if needed.
+     */
+    List<ByteBuffer> records() {
+        ByteBuffer records = buffer.duplicate();
+        records.position(0);
+        List<ByteBuffer> payloads = new ArrayList<>();
+        while (records.remaining() >= HEADER_SIZE) {
+            int start = records.position();
+            int size = records.getInt();
+            int crc = records.getInt();
+            if (size <= 0 || size > records.remaining() || checksum(records, start + HEADER_SIZE, size) != crc) {
+                break;
+            }
+            ByteBuffer payload = records.slice();
+            payload.limit(size);
+            payloads.add(payload);
+            records.position(start + HEADER_SIZE + size);
+        }
+        return payloads;
+    }
+
+    /**
+     * Forces the records that were appended since the last flush to disk.
+     *
+     * @return whether there was anything to force.
+     */
+    boolean flush() {
+        if (!dirty.getAndSet(false)) {
+            return false;
+        }
+        buffer.force();
+        return true;
+    }
+
+    /**
+     * @return the number of bytes taken by the appended records.
+     */
+    int position() {
+        return buffer.position();
+    }
+
+    private static int checksum(ByteBuffer buffer, int start, int size) {
+        ByteBuffer covered = buffer.duplicate();
+        covered.limit(start + size).position(start);
+        CRC32 crc = new CRC32();
+        crc.update(covered);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,170 @@
+package previewcode.backend.services;
+
+import com.google.inject.Singleton;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Registry of named gauges that report the internal state of the backend,
+ * such as cache hit rates and queue depths.
+ */
+@Singleton
+public class MetricsService {
+
+    private final Map<String, Supplier<?>> gauges = new ConcurrentSkipListMap<>();
+
+    /**
+     * Registers a gauge, replacing any gauge previously registered under the same name.
+     *
+     * @param name
+     *            The name of the metric, e.g. `github.installationTokens.hits`
+     * @param gauge
+     *            Supplies the current value of the metric
+     */
+    public void register(String name, Supplier<?> gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Registers a timer that reports the number, mean and maximum of the durations recorded with it.
+     *
+     * @param name
+     *            The name of the metric, e.g. `webhooks.processingTime`
+     * @return the timer to record durations with
+     */
+    public Timer timer(String name) {
+        Timer timer = new Timer();
+        this.register(name, timer::summary);
+        return timer;
+    }
+
+    /**
+     * Registers a timer that also reports how the recorded durations are distributed.
+     *
+     * @param name
+     *            The name of the metric, e.g. `firebase.writes.latency.status`
+     * @return the histogram to record durations with
+     */
+    public Histogram histogram(String name) {
+        Histogram histogram = new Histogram();
+        this.register(name, histogram::summary);
+        return histogram;
+    }
+
+    /**
+     * @return the current value of every registered gauge, sorted by name.
+     */
+    public SortedMap<String, Object> snapshot() {
+        SortedMap<String, Object> values = new TreeMap<>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.get()));
+        return values;
+    }
+
+    /**
+     * Records durations without locking.
+     */
+    public static class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        /**
+         * Records the time passed since the given start.
+         *
+         * @param startNanos The start as returned by {@link System#nanoTime()}
+         */
+        public void recordSince(long startNanos) {
+            this.record(System.nanoTime() - startNanos);
+        }
+
+        public void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        Map<String, Object> summary() {
+            long n = count.sum();
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("count", n);
+            summary.put("meanMillis", n == 0 ? 0.0 : totalNanos.sum() / (double) n / TimeUnit.MILLISECONDS.toNanos(1));
+            summary.put("maxMillis", TimeUnit.NANOSECONDS.toMillis(maxNanos.get()));
+            return summary;
+        }
+    }
+
+    /**
+     * A timer that counts durations in buckets which double in size, from 1ms up to about a minute,
+     * and estimates percentiles as the upper bound of their bucket.
+     */
+    public static class Histogram extends Timer {
+        private static final int BUCKETS = 18;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        @Override
+        public void record(long nanos) {
+            super.record(nanos);
+            buckets[bucket(nanos)].increment();
+        }
+
+        /**
+         * The bucket of a duration: bucket `i` holds durations up to 2^i milliseconds, the last one all longer ones.
+         */
+        private static int bucket(long nanos) {
+            long nanosPerMilli = TimeUnit.MILLISECONDS.toNanos(1);
+            long millis = (Math.max(0, nanos) + nanosPerMilli - 1) / nanosPerMilli;
+            if (millis <= 1) {
+                return 0;
+            }
+            return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis - 1));
+        }
+
+        @Override
+        Map<String, Object> summary() {
+            Map<String, Object> summary = super.summary();
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            Map<String, Long> distribution = new LinkedHashMap<>();
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+                distribution.put(i == BUCKETS - 1 ? "+Inf" : Long.toString(1L << i), counts[i]);
+            }
+            long max = (Long) summary.get("maxMillis");
+            summary.put("p50Millis", percentile(counts, total, 0.50, max));
+            summary.put("p90Millis", percentile(counts, total, 0.90, max));
+            summary.put("p99Millis", percentile(counts, total, 0.99, max));
+            summary.put("bucketsMillis", distribution);
+            return summary;
+        }
+
+        /**
+         * The upper bound of the bucket of a percentile, never more than the longest duration.
+         */
+        private static long percentile(long[] counts, long total, double quantile, long maxMillis) {
+            long seen = 0;
+            for (int i = 0; i < BUCKETS - 1; i++) {
+                seen += counts[i];
+                if (total > 0 && seen >= quantile * total) {
+                    return Math.min(1L << i, Math.max(1, maxMillis));
+                }
+            }
+            return total == 0 ? 0 : maxMillis;
+        }
+    }
+}
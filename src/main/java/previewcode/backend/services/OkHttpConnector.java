@@ -0,0 +1,27 @@
+package previewcode.backend.services;
+
+import okhttp3.OkHttpClient;
+import okhttp3.OkUrlFactory;
+import org.kohsuke.github.HttpConnector;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens the connections of the kohsuke GitHub API with an {@link OkHttpClient},
+ * so these calls share the connection pool of the rest of our GitHub traffic.
+ */
+public class OkHttpConnector implements HttpConnector {
+
+    private final OkUrlFactory urlFactory;
+
+    public OkHttpConnector(OkHttpClient client) {
+        this.urlFactory = new OkUrlFactory(client);
+    }
+
+    @Override
+    public HttpURLConnection connect(URL url) throws IOException {
+        return urlFactory.open(url);
+    }
+}
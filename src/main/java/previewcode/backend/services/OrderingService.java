@@ -0,0 +1,216 @@
+package previewcode.backend.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import previewcode.backend.DTO.Ordering;
+import previewcode.backend.DTO.PullRequestIdentifier;
+
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Updates the ordering of pull requests by writing only the groups that changed.
+ *
+ * The stored ordering is taken from the {@link PullRequestMirror}, which keeps a content hash of every group.
+ * A group is written when its hash differs from the stored group at the same index, and stored groups past
+ * the end of the new ordering are removed, all in a single multi-path update. Moving a hunk between two groups
+ * therefore sends two groups instead of the whole ordering to Firebase and to every subscribed client.
+ *
+ * The mirror only sees an update once storage reports it, so the hashes of the orderings this instance stored
+ * are kept as well, and used as long as the mirror has not caught up with them. An update that fails forgets
+ * them, so the next update is based on the mirror again.
+ */
+@Singleton
+public class OrderingService {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrderingService.class);
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final StorageService storage;
+    private final PullRequestMirror mirror;
+
+    /**
+     * The hashes of the orderings this instance stored recently, by the path of the pull request
+     */
+    private final Cache<String, Written> written = CacheBuilder.newBuilder()
+            .maximumSize(10_000)
+            .expireAfterWrite(10, TimeUnit.MINUTES)
+            .build();
+
+    /**
+     * The last update of every pull request with an update in progress
+     */
+    private final ConcurrentMap<String, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong fullWrites = new AtomicLong();
+    private final AtomicLong groupsWritten = new AtomicLong();
+    private final AtomicLong groupsUnchanged = new AtomicLong();
+    private final AtomicLong groupsRemoved = new AtomicLong();
+
+    @Inject
+    public OrderingService(StorageService storage, PullRequestMirror mirror, MetricsService metrics) {
+        this.storage = storage;
+        this.mirror = mirror;
+
+        metrics.register("ordering.updates", updates::get);
+        metrics.register("ordering.fullWrites", fullWrites::get);
+        metrics.register("ordering.groupsWritten", groupsWritten::get);
+        metrics.register("ordering.groupsUnchanged", groupsUnchanged::get);
+        metrics.register("ordering.groupsRemoved", groupsRemoved::get);
+    }
+
+    /**
+     * Replaces the ordering of a pull request, writing only the groups that differ from the stored ordering.
+     * The whole ordering is written when the stored ordering is empty or cannot be read.
+     *
+     * @param pullId The identifier object for the pull request
+     * @param orderings The new groups of the ordering
+     * @return A future that completes once the storage has acknowledged the update.
+     */
+    public CompletableFuture<Void> setOrdering(PullRequestIdentifier pullId, List<Ordering> orderings) {
+        updates.incrementAndGet();
+        List<Ordering> groups = orderings == null ? Collections.emptyList() : orderings;
+        return mirror.get(pullId.owner, pullId.name, pullId.number)
+                .handle((stored, error) -> {
+                    if (error != null) {
+                        logger.warn("Writing the whole ordering of " + pullId.toGitHubURL()
+                                + ", the stored ordering could not be read: " + error.getMessage());
+                    }
+                    return error == null ? stored : null;
+                })
+                .thenCompose(stored -> this.write(pullId, groups, stored));
+    }
+
+    /**
+     * Writes the difference between the known ordering and the new one. Updates of one pull request
+     * are written one after another, each once the previous one is acknowledged, so each is based on the last.
+     */
+    private CompletableFuture<Void> write(PullRequestIdentifier pullId, List<Ordering> groups,
+                                          PullRequestMirror.PullRequestState stored) {
+        String path = StorageService.pullPath(pullId.owner, pullId.name, pullId.number.toString());
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        CompletableFuture<Void> previous = tails.put(path, result);
+        (previous == null ? CompletableFuture.<Void>completedFuture(null) : previous)
+                .handle((done, error) -> null)
+                .thenCompose(ignored -> this.commit(pullId, path, groups, stored))
+                .whenComplete((done, error) -> {
+                    tails.remove(path, result);
+                    if (error != null) {
+                        result.completeExceptionally(error);
+                    } else {
+                        result.complete(null);
+                    }
+                });
+        return result;
+    }
+
+    private CompletableFuture<Void> commit(PullRequestIdentifier pullId, String path, List<Ordering> groups,
+                                           PullRequestMirror.PullRequestState stored) {
+        Written last = written.getIfPresent(path);
+        long storedLastChanged = stored == null || stored.orderingLastChanged == null
+                ? -1 : stored.orderingLastChanged;
+        // The mirror may not have seen our last update yet, unless another instance has written since
+        List<String> known = last != null && last.lastChanged > storedLastChanged
+                ? last.hashes : stored == null ? null : stored.groupHashes;
+        long lastChanged = Math.max(System.currentTimeMillis(), last == null ? 0 : last.lastChanged + 1);
+        List<String> hashes = hashes(groups);
+
+        CompletableFuture<Void> committed;
+        if (known == null || known.isEmpty()) {
+            fullWrites.incrementAndGet();
+            groupsWritten.addAndGet(groups.size());
+            committed = storage.batch()
+                    .setOrdering(pullId, groups)
+                    .set(path + "/ordering/lastChanged", lastChanged)
+                    .commit();
+        } else {
+            Map<Integer, Ordering> changed = changedGroups(known, groups);
+            long removed = Math.max(0, known.size() - groups.size());
+            groupsWritten.addAndGet(changed.size() - removed);
+            groupsRemoved.addAndGet(removed);
+            groupsUnchanged.addAndGet(groups.size() - (changed.size() - removed));
+            committed = storage.batch().updateOrdering(pullId, lastChanged, changed).commit();
+        }
+        // Only stored orderings may serve as the base of the next update
+        return committed.whenComplete((done, error) -> {
+            if (error == null) {
+                written.put(path, new Written(lastChanged, hashes));
+            } else {
+                written.invalidate(path);
+            }
+        });
+    }
+
+    /**
+     * Finds the groups to write to turn the stored ordering into the new one.
+     *
+     * @param storedHashes The hashes of the stored groups, by index
+     * @param groups The new groups
+     * @return The groups to write by their index, with `null` for the stored groups that are removed.
+     */
+    public static Map<Integer, Ordering> changedGroups(List<String> storedHashes, List<Ordering> groups) {
+        Map<Integer, Ordering> changed = new TreeMap<>();
+        for (int i = 0; i < groups.size(); i++) {
+            if (i >= storedHashes.size() || !hash(groups.get(i)).equals(storedHashes.get(i))) {
+                changed.put(i, groups.get(i));
+            }
+        }
+        for (int i = groups.size(); i < storedHashes.size(); i++) {
+            changed.put(i, null);
+        }
+        return changed;
+    }
+
+    /**
+     * The hashes of the groups of an ordering, by index
+     */
+    public static List<String> hashes(List<Ordering> groups) {
+        List<String> hashes = new ArrayList<>(groups.size());
+        for (Ordering group : groups) {
+            hashes.add(hash(group));
+        }
+        return hashes;
+    }
+
+    /**
+     * Hashes the content of a group as it is stored
+     */
+    static String hash(Ordering group) {
+        try {
+            return Hashing.murmur3_128().hashBytes(mapper.writeValueAsBytes(group)).toString();
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The last ordering this instance wrote for a pull request
+     */
+    private static class Written {
+        final long lastChanged;
+        final List<String> hashes;
+
+        Written(long lastChanged, List<String> hashes) {
+            this.lastChanged = lastChanged;
+            this.hashes = hashes;
+        }
+    }
+}
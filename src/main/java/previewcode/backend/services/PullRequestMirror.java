@@ -0,0 +1,313 @@
+package previewcode.backend.services;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import previewcode.backend.DTO.ApprovalSummary;
+import previewcode.backend.DTO.Ordering;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps an in-memory copy of the stored data of recently active pull requests.
+ *
+ * A pull request is loaded when it is first read, after which a watch keeps its copy up to date,
+ * so reads are served from memory. The least recently read pull requests are dropped,
+ * together with their listener, once the mirror is full or when they have not been read for a while.
+ */
+@Singleton
+public class PullRequestMirror {
+
+    private static final Logger logger = LoggerFactory.getLogger(PullRequestMirror.class);
+
+    private static final long IDLE_MINUTES = 30;
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final TypeReference<List<Ordering>> ORDERING_TYPE = new TypeReference<List<Ordering>>() {};
+
+    private final StorageService storage;
+    private final Cache<String, Entry> entries;
+
+    private final AtomicLong estimatedBytes = new AtomicLong();
+    private final AtomicLong updates = new AtomicLong();
+
+    @Inject
+    public PullRequestMirror(StorageService storage,
+                             @Named("storage.mirror.capacity") int capacity,
+                             MetricsService metrics) {
+        this.storage = storage;
+        this.entries = CacheBuilder.newBuilder()
+                .maximumSize(capacity)
+                .expireAfterAccess(IDLE_MINUTES, TimeUnit.MINUTES)
+                .removalListener(this::detach)
+                .recordStats()
+                .build();
+
+        metrics.register("storage.mirror.hits", () -> entries.stats().hitCount());
+        metrics.register("storage.mirror.misses", () -> entries.stats().missCount());
+        metrics.register("storage.mirror.evictions", () -> entries.stats().evictionCount());
+        metrics.register("storage.mirror.size", entries::size);
+        metrics.register("storage.mirror.updates", updates::get);
+        metrics.register("storage.mirror.estimatedBytes", estimatedBytes::get);
+    }
+
+    /**
+     * Get the mirrored data of a pull request, loading it from storage if it is not mirrored yet.
+     *
+     * @param owner The owner of the repository where the pull request is located
+     * @param name The name of the repository where the pull request is located
+     * @param number The number of the pull request
+     * @return A future that completes with the data once it is loaded.
+     */
+    public CompletableFuture<PullRequestState> get(String owner, String name, int number) {
+        String path = owner + "/" + name + "/pulls/" + number;
+        Entry entry;
+        try {
+            entry = entries.get(path, () -> this.attach(path));
+        } catch (ExecutionException e) {
+            CompletableFuture<PullRequestState> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e.getCause());
+            return failed;
+        }
+        return entry.loaded.thenApply(loaded -> entry.state);
+    }
+
+    private Entry attach(String path) {
+        logger.debug("Mirroring " + path);
+        Entry entry = new Entry(path);
+        entry.subscription = storage.watch(path, entry::onChange, entry::onError);
+        return entry;
+    }
+
+    private void detach(RemovalNotification<String, Entry> removed) {
+        Entry entry = removed.getValue();
+        if (entry.subscription != null) {
+            entry.subscription.cancel();
+        }
+        synchronized (entry) {
+            entry.detached = true;
+            estimatedBytes.addAndGet(-entry.state.estimatedBytes);
+        }
+    }
+
+    /**
+     * A mirrored pull request, updated by its own watch.
+     */
+    private class Entry {
+        final String path;
+        final CompletableFuture<Void> loaded = new CompletableFuture<>();
+        volatile PullRequestState state = PullRequestState.EMPTY;
+        volatile StorageService.Subscription subscription;
+        boolean detached;
+
+        Entry(String path) {
+            this.path = path;
+        }
+
+        void onChange(Object value) {
+            PullRequestState next = PullRequestState.read(path, value);
+            synchronized (this) {
+                if (!detached) {
+                    // Only attached entries count towards the memory of the mirror
+                    estimatedBytes.addAndGet(next.estimatedBytes - state.estimatedBytes);
+                }
+                state = next;
+            }
+            updates.incrementAndGet();
+            loaded.complete(null);
+        }
+
+        void onError(Throwable error) {
+            logger.error("Stopped mirroring " + path + ": " + error.getMessage());
+            loaded.completeExceptionally(error);
+            entries.asMap().remove(path, this);
+        }
+    }
+
+    /**
+     * The data of a pull request as stored.
+     */
+    public static class PullRequestState {
+
+        static final PullRequestState EMPTY = new PullRequestState(Collections.emptyList(), null, null,
+                Collections.emptyMap(), Collections.emptyMap(),
+                summarize(Collections.emptyList(), Collections.emptyMap()), 0);
+
+        /**
+         * The content hash of every group of the ordering, by index
+         */
+        final List<String> groupHashes;
+
+        /**
+         * The groups of the ordering, empty if the pull request has no ordering
+         */
+        public final List<Ordering> ordering;
+
+        /**
+         * The time the ordering last changed, or `null` if the pull request has no ordering
+         */
+        public final Long orderingLastChanged;
+
+        /**
+         * The status, or `null` if the pull request has no status
+         */
+        public final String status;
+
+        /**
+         * The approval status of every hunk by the id of the hunk and the GitHub user
+         */
+        public final Map<String, Map<String, String>> approvals;
+
+        /**
+         * The group of every comment by the id of the comment
+         */
+        public final Map<String, String> groupComments;
+
+        /**
+         * The number of hunks every reviewer approved, disapproved or has not reviewed yet
+         */
+        public final ApprovalSummary approvalSummary;
+
+        /**
+         * A rough estimate of the memory the mirrored data takes up
+         */
+        final long estimatedBytes;
+
+        private PullRequestState(List<Ordering> ordering, Long orderingLastChanged, String status,
+                                 Map<String, Map<String, String>> approvals, Map<String, String> groupComments,
+                                 ApprovalSummary approvalSummary, long estimatedBytes) {
+            this.ordering = ordering;
+            this.orderingLastChanged = orderingLastChanged;
+            this.status = status;
+            this.approvals = approvals;
+            this.groupComments = groupComments;
+            this.approvalSummary = approvalSummary;
+            this.estimatedBytes = estimatedBytes;
+            this.groupHashes = Collections.unmodifiableList(OrderingService.hashes(ordering));
+        }
+
+        static PullRequestState read(String path, Object value) {
+            Map<String, Object> pull = asMap(value);
+            Map<String, Object> ordering = asMap(pull.get("ordering"));
+            List<Ordering> groups = null;
+            try {
+                groups = mapper.convertValue(ordering.get("groups"), ORDERING_TYPE);
+            } catch (IllegalArgumentException e) {
+                logger.warn("Ignoring malformed ordering of " + path + ": " + e.getMessage());
+            }
+
+            Map<String, Map<String, String>> approvals = new LinkedHashMap<>();
+            asMap(pull.get("hunkApprovals")).forEach((hunk, users) -> {
+                Map<String, String> statuses = new LinkedHashMap<>();
+                asMap(users).forEach((user, status) -> statuses.put(user, String.valueOf(status)));
+                approvals.put(hunk, Collections.unmodifiableMap(statuses));
+            });
+            Map<String, String> groupComments = new LinkedHashMap<>();
+            asMap(pull.get("groupcomments"))
+                    .forEach((comment, group) -> groupComments.put(comment, String.valueOf(group)));
+
+            Object lastChanged = ordering.get("lastChanged");
+            Object status = pull.get("status");
+            groups = groups == null ? Collections.emptyList() : Collections.unmodifiableList(groups);
+            return new PullRequestState(
+                    groups,
+                    lastChanged instanceof Number ? ((Number) lastChanged).longValue() : null,
+                    status == null ? null : status.toString(),
+                    Collections.unmodifiableMap(approvals),
+                    Collections.unmodifiableMap(groupComments),
+                    summarize(groups, approvals),
+                    estimateBytes(value));
+        }
+
+        /**
+         * Builds the approval summary from the approvals of every reviewer, counting only hunks of the current
+         * ordering. It is computed once per change rather than on every read.
+         */
+        private static ApprovalSummary summarize(List<Ordering> groups, Map<String, Map<String, String>> approvals) {
+            Set<String> hunks = new HashSet<>();
+            for (Ordering group : groups) {
+                if (group != null && group.diff != null) {
+                    hunks.addAll(group.diff);
+                }
+            }
+
+            ApprovalSummary summary = new ApprovalSummary();
+            summary.hunks = hunks.size();
+            Map<String, ApprovalSummary.Reviewer> reviewers = new LinkedHashMap<>();
+            approvals.forEach((hunk, statuses) -> statuses.forEach((user, status) -> {
+                ApprovalSummary.Reviewer reviewer = reviewers.computeIfAbsent(user,
+                        u -> new ApprovalSummary.Reviewer());
+                // Decisions on hunks that are no longer in the ordering do not count
+                if (hunks.contains(hunk)) {
+                    if (ApprovalService.APPROVED.equals(status)) {
+                        reviewer.approved++;
+                    } else if (ApprovalService.DISAPPROVED.equals(status)) {
+                        reviewer.disapproved++;
+                    }
+                }
+            }));
+            reviewers.values().forEach(reviewer ->
+                    reviewer.pending = summary.hunks - reviewer.approved - reviewer.disapproved);
+            summary.reviewers = Collections.unmodifiableMap(reviewers);
+            summary.fullyReviewed = summary.hunks > 0 && !summary.reviewers.isEmpty()
+                    && summary.reviewers.values().stream().allMatch(reviewer -> reviewer.pending == 0);
+            return summary;
+        }
+
+        /**
+         * Views a node as a map. Stored nodes whose keys are mostly numbers, such as comment ids,
+         * may be read back as lists, in which case the missing indices are left out.
+         */
+        @SuppressWarnings("unchecked")
+        private static Map<String, Object> asMap(Object node) {
+            if (node instanceof Map) {
+                return (Map<String, Object>) node;
+            } else if (node instanceof List) {
+                Map<String, Object> map = new LinkedHashMap<>();
+                List<Object> list = (List<Object>) node;
+                for (int i = 0; i < list.size(); i++) {
+                    if (list.get(i) != null) {
+                        map.put(Integer.toString(i), list.get(i));
+                    }
+                }
+                return map;
+            }
+            return Collections.emptyMap();
+        }
+
+        /**
+         * Estimates the memory of a subtree: an object header and a string per node and value.
+         */
+        private static long estimateBytes(Object node) {
+            long bytes = 64;
+            if (node instanceof Map) {
+                for (Map.Entry<?, ?> child : ((Map<?, ?>) node).entrySet()) {
+                    bytes += 2L * child.getKey().toString().length() + estimateBytes(child.getValue());
+                }
+            } else if (node instanceof List) {
+                for (Object child : (List<?>) node) {
+                    bytes += estimateBytes(child);
+                }
+            } else if (node != null) {
+                bytes += 40 + 2L * node.toString().length();
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package previewcode.backend.services;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes the body of a successful GitHub response.
+ *
+ * The body is streamed straight from the connection, so a decoder never holds the whole body in memory.
+ * A decoder may stop reading as soon as it has found what it needs, the rest of the body is discarded.
+ *
+ * Decoded bodies of GET requests are cached by the {@link ConditionalRequestCache} per decoder,
+ * so decoders should be constants.
+ */
+@FunctionalInterface
+public interface ResponseDecoder<T> {
+
+    T decode(InputStream body) throws IOException;
+
+    ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * A decoder that ignores the body.
+     */
+    ResponseDecoder<Void> IGNORE = body -> null;
+
+    static <T> ResponseDecoder<T> json(Class<T> destClass) {
+        return body -> MAPPER.readValue(body, destClass);
+    }
+
+    static <T> ResponseDecoder<T> json(TypeReference<T> typeReference) {
+        return body -> MAPPER.readValue(body, typeReference);
+    }
+}
@@ -0,0 +1,98 @@
+package previewcode.backend.services;
+
+import com.google.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lets services that hold on to work in memory finish it when the backend shuts down.
+ *
+ * Hooks run one phase after the other, so work that is handed from one service to the next
+ * is not dropped on the way. All hooks share a single deadline.
+ */
+@Singleton
+public class ShutdownRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShutdownRegistry.class);
+
+    /**
+     * The phases of a shutdown, in the order in which they run.
+     */
+    public enum Phase {
+        /**
+         * Flush work that is buffered before it is processed, such as delayed webhook events.
+         */
+        INTAKE,
+        /**
+         * Finish work that is queued for processing.
+         */
+        PROCESSING,
+        /**
+         * Wait for writes to external storage to be acknowledged.
+         */
+        PERSISTENCE
+    }
+
+    @FunctionalInterface
+    public interface Hook {
+        /**
+         * Finishes outstanding work.
+         *
+         * @param timeout The time left until the shutdown deadline
+         */
+        void stop(Duration timeout) throws Exception;
+    }
+
+    private final Map<Phase, List<NamedHook>> hooks = new EnumMap<>(Phase.class);
+
+    /**
+     * Registers a hook to run when the backend shuts down.
+     *
+     * @param phase The phase in which the hook runs
+     * @param name A name of the hook for the log
+     * @param hook The hook
+     */
+    public synchronized void register(Phase phase, String name, Hook hook) {
+        hooks.computeIfAbsent(phase, p -> new ArrayList<>()).add(new NamedHook(name, hook));
+    }
+
+    /**
+     * Runs all hooks, phase by phase. A failing hook does not stop the others.
+     *
+     * @param timeout The time all hooks together may take
+     */
+    public synchronized void shutdown(Duration timeout) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        for (Phase phase : Phase.values()) {
+            for (NamedHook hook : hooks.getOrDefault(phase, new ArrayList<>())) {
+                Duration remaining = Duration.ofNanos(Math.max(0, deadline - System.nanoTime()));
+                logger.info("Stopping " + hook.name + " (" + remaining.toMillis() + "ms left)");
+                try {
+                    hook.hook.stop(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    logger.warn("Interrupted while stopping " + hook.name);
+                    return;
+                } catch (Exception e) {
+                    logger.error("Failed to stop " + hook.name + ":", e);
+                }
+            }
+        }
+    }
+
+    private static class NamedHook {
+        final String name;
+        final Hook hook;
+
+        NamedHook(String name, Hook hook) {
+            this.name = name;
+            this.hook = hook;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package previewcode.backend.services;
+
+import previewcode.backend.DTO.Approve;
+import previewcode.backend.DTO.Ordering;
+import previewcode.backend.DTO.PullRequestIdentifier;
+import previewcode.backend.DTO.Track;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Stores the data of pull requests that is not kept on GitHub: orderings, statuses, approvals,
+ * group comments and tracking.
+ *
+ * Data is a tree of values addressed by `/`-separated paths, as in Firebase.
+ * Values are read back as plain trees of maps, lists, strings, numbers and booleans.
+ */
+public interface StorageService {
+
+    /**
+     * Starts a batch of writes that is committed as a single atomic update
+     */
+    Batch batch();
+
+    /**
+     * Sets the LGTM of a hunk
+     *
+     * @param owner
+     *            The owner of the repository where the pull request is located
+     * @param name
+     *            The name of the repository where the pull request is located
+     * @param number
+     *            The number of the pull request
+     * @param LGTM
+     *            The approved object with information for the storage
+     */
+    default CompletableFuture<Void> setApproved(String owner, String name, String number, Approve LGTM) {
+        return this.batch().setApproved(owner, name, number, LGTM).commit();
+    }
+
+    /**
+     * Sets the group of a comment
+     *
+     * @param owner
+     *            The owner of the repository where the comment is posted
+     * @param name
+     *            The name of the repository where the comment is posted
+     * @param number
+     *            The number of the pull request
+     * @param commentID
+     *            The id of the comment
+     * @param groupID
+     *            The id of the group
+     */
+    default CompletableFuture<Void> setComments(String owner, String name, int number,
+                                                Integer commentID, String groupID) {
+        return this.batch().setComments(owner, name, number, commentID, groupID).commit();
+    }
+
+    /**
+     * Sets the ordering of a pull request
+     *
+     * @param pullId The identifier object for the pull request
+     */
+    default CompletableFuture<Void> setOrdering(PullRequestIdentifier pullId, List<Ordering> orderings) {
+        return this.batch().setOrdering(pullId, orderings).commit();
+    }
+
+    /**
+     * Sets the status of a pull request
+     *
+     * @param owner
+     *            The owner of the repository where the pull request is located
+     * @param name
+     *            The name of the repository where the pull request is located
+     * @param number
+     *            The number of the pull request
+     * @param status
+     *            The status of the pull request
+     */
+    default CompletableFuture<Void> setStatus(String owner, String name, String number, String status) {
+        return this.batch().setStatus(owner, name, number, status).commit();
+    }
+
+    default CompletableFuture<Void> addTracker(Track data) {
+        return this.batch().addTracker(data).commit();
+    }
+
+    /**
+     * Adds default information about a pull request, unless it has a status already.
+     *
+     * @param pullId The identifier object for the pull request
+     * @return A future that completes once the pull request is known to have a status.
+     */
+    CompletableFuture<Void> addDefaultData(PullRequestIdentifier pullId);
+
+    /**
+     * Atomically replaces the value at a path with a value computed from the current one.
+     * The function may be called more than once when the value changes concurrently, so it must not have side effects.
+     *
+     * @param path The path of the value
+     * @param update Computes the new value from the current value, which is `null` if there is none
+     * @return A future with the value that was stored.
+     */
+    CompletableFuture<Object> update(String path, UnaryOperator<Object> update);
+
+    /**
+     * Reads the children of a path with keys in a range.
+     *
+     * @param path The path of the parent
+     * @param fromKey The first key of the range
+     * @param toKey The last key of the range
+     * @return A future with the values of the children by their key, in the order of their keys.
+     */
+    CompletableFuture<Map<String, Object>> readRange(String path, String fromKey, String toKey);
+
+    /**
+     * Watches the value at a path. The listener is called with the current value right away,
+     * and with the new value every time it changes.
+     *
+     * @param path The path to watch
+     * @param onChange Called with the value at the path, or `null` if there is none
+     * @param onError Called when the value can no longer be watched
+     * @return A subscription that stops watching when cancelled.
+     */
+    Subscription watch(String path, Consumer<Object> onChange, Consumer<Throwable> onError);
+
+    interface Subscription {
+        void cancel();
+    }
+
+    /**
+     * A set of writes that is committed as a single atomic update,
+     * so readers never see a partially applied operation.
+     * The setters mirror the writes of the service itself.
+     */
+    interface Batch {
+
+        /**
+         * Adds a write of a value to a path from the root
+         *
+         * @param path The path, with its parts separated by `/`
+         * @param value The value, or `null` to delete the path
+         */
+        Batch set(String path, Object value);
+
+        /**
+         * Commits the writes of this batch
+         *
+         * @return A future that completes once the storage has acknowledged all writes.
+         */
+        CompletableFuture<Void> commit();
+
+        /**
+         * @see StorageService#setApproved(String, String, String, Approve)
+         */
+        default Batch setApproved(String owner, String name, String number, Approve LGTM) {
+            return this.set(pullPath(owner, name, number) + "/hunkApprovals/" + LGTM.hunkId
+                    + "/" + LGTM.githubLogin, LGTM.status);
+        }
+
+        /**
+         * @see StorageService#setComments(String, String, int, Integer, String)
+         */
+        default Batch setComments(String owner, String name, int number, Integer commentID, String groupID) {
+            return this.set(pullPath(owner.toLowerCase(), name.toLowerCase(), Integer.toString(number))
+                    + "/groupcomments/" + commentID, groupID);
+        }
+
+        /**
+         * @see StorageService#setOrdering(PullRequestIdentifier, List)
+         */
+        default Batch setOrdering(PullRequestIdentifier pullId, List<Ordering> orderings) {
+            String path = pullPath(pullId.owner, pullId.name, pullId.number.toString()) + "/ordering";
+            this.set(path + "/lastChanged", System.currentTimeMillis());
+            return this.set(path + "/groups", orderings);
+        }
+
+        /**
+         * Changes some groups of the ordering of a pull request, leaving the other groups as they are
+         *
+         * @param pullId The identifier object for the pull request
+         * @param lastChanged The time of the change, in milliseconds since the epoch
+         * @param groups The groups to write by their index, `null` to remove the group
+         */
+        default Batch updateOrdering(PullRequestIdentifier pullId, long lastChanged, Map<Integer, Ordering> groups) {
+            String path = pullPath(pullId.owner, pullId.name, pullId.number.toString()) + "/ordering";
+            this.set(path + "/lastChanged", lastChanged);
+            groups.forEach((index, group) -> this.set(path + "/groups/" + index, group));
+            return this;
+        }
+
+        /**
+         * @see StorageService#setStatus(String, String, String, String)
+         */
+        default Batch setStatus(String owner, String name, String number, String status) {
+            return this.set(pullPath(owner, name, number) + "/status", status);
+        }
+
+        /**
+         * @see StorageService#addTracker(Track)
+         */
+        default Batch addTracker(Track data) {
+            String path = "tracking/" + data.time;
+            this.set(path + "/new", data.newPath);
+            return this.set(path + "/old", data.oldPath);
+        }
+    }
+
+    /**
+     * The path of the data of a pull request
+     */
+    static String pullPath(String owner, String name, String number) {
+        return owner + "/" + name + "/pulls/" + number;
+    }
+}
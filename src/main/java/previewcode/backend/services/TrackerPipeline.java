@@ -0,0 +1,146 @@
+package previewcode.backend.services;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import previewcode.backend.DTO.Track;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers tracker events and stores them in batches.
+ *
+ * Events are added to a {@link RingBuffer} without blocking the request. The buffer is flushed
+ * as a single multi-path update whenever it holds a full batch, and at a fixed interval otherwise.
+ * When the buffer is full, either the new event or the oldest buffered event is dropped.
+ * Buffered events are flushed when the backend shuts down.
+ */
+@Singleton
+public class TrackerPipeline {
+
+    private static final Logger logger = LoggerFactory.getLogger(TrackerPipeline.class);
+
+    /**
+     * What happens to an event that arrives while the buffer is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * The new event is dropped
+         */
+        DROP_NEWEST,
+        /**
+         * The oldest buffered event is dropped to make room for the new event
+         */
+        DROP_OLDEST
+    }
+
+    private final StorageService storageService;
+    private final TrackerRollup rollup;
+    private final RingBuffer<Track> buffer;
+    private final int batchSize;
+    private final OverflowPolicy overflowPolicy;
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("tracker-flush-%d").setDaemon(true).build());
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushed = new AtomicLong();
+
+    @Inject
+    public TrackerPipeline(StorageService storageService,
+                           TrackerRollup rollup,
+                           @Named("tracker.buffer.capacity") int capacity,
+                           @Named("tracker.batch.size") int batchSize,
+                           @Named("tracker.flush.interval") int flushIntervalMillis,
+                           @Named("tracker.overflow") OverflowPolicy overflowPolicy,
+                           MetricsService metrics,
+                           ShutdownRegistry shutdown) {
+        this.storageService = storageService;
+        this.rollup = rollup;
+        this.buffer = new RingBuffer<>(capacity);
+        this.batchSize = batchSize;
+        this.overflowPolicy = overflowPolicy;
+
+        metrics.register("tracker.received", received::get);
+        metrics.register("tracker.dropped", dropped::get);
+        metrics.register("tracker.buffered", buffer::size);
+        metrics.register("tracker.flushes", flushes::get);
+        metrics.register("tracker.eventsPerFlush",
+                () -> flushes.get() == 0 ? 0.0 : (double) flushed.get() / flushes.get());
+
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        // Runs before the writer commits its last writes
+        shutdown.register(ShutdownRegistry.Phase.PROCESSING, "tracker pipeline", timeout -> {
+            flusher.shutdownNow();
+            this.flush();
+            rollup.flush();
+        });
+    }
+
+    /**
+     * Buffers an event to be stored with the next batch. Never blocks.
+     *
+     * @return whether the event was buffered without dropping an event.
+     */
+    public boolean submit(Track event) {
+        boolean dropsNone = buffer.offer(event);
+        if (!dropsNone) {
+            if (overflowPolicy == OverflowPolicy.DROP_OLDEST && buffer.poll() != null) {
+                dropped.incrementAndGet();
+            }
+            // Other producers may claim the freed slot first, in which case the new event is dropped after all
+            if (overflowPolicy == OverflowPolicy.DROP_NEWEST || !buffer.offer(event)) {
+                dropped.incrementAndGet();
+            }
+        }
+        received.incrementAndGet();
+
+        if (buffer.size() >= batchSize && flushRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(this::flush);
+            } catch (RejectedExecutionException e) {
+                // Shutting down, the shutdown hook flushes the buffer
+                flushRequested.set(false);
+            }
+        }
+        return dropsNone;
+    }
+
+    private void flush() {
+        flushRequested.set(false);
+        try {
+            int taken;
+            do {
+                StorageService.Batch batch = storageService.batch();
+                Track event;
+                for (taken = 0; taken < batchSize && (event = buffer.poll()) != null; taken++) {
+                    batch.addTracker(event);
+                    rollup.record(event);
+                }
+                if (taken > 0) {
+                    flushes.incrementAndGet();
+                    flushed.addAndGet(taken);
+                    batch.commit().whenComplete((done, error) -> {
+                        if (error != null) {
+                            logger.warn("Failed to store a batch of tracker events: " + error.getMessage());
+                        }
+                    });
+                }
+            } while (taken == batchSize);
+        } catch (RuntimeException e) {
+            // Keeps the scheduled flushes going
+            logger.error("Failed to flush tracker events:", e);
+        }
+    }
+}
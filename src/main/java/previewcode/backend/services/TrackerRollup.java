@@ -0,0 +1,354 @@
+package previewcode.backend.services;
+
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import previewcode.backend.DTO.Track;
+import previewcode.backend.DTO.TrackerRollupReport;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Rolls tracker events up into the number of transitions between paths
+ * and the time spent on each path, per interval.
+ *
+ * Paths are encoded as ints, so the counts of an interval live in primitive maps keyed by those ints.
+ * Intervals are stored under `trackingRollups/{interval start}/{instance}` at a fixed rate,
+ * each backend instance writing only its own counts, so reports never read the raw events.
+ *
+ * Only the last {@value #RETAINED_INTERVALS} intervals are kept in memory. Events from before them, or from more
+ * than an interval in the future, are dropped: their interval is no longer, or not yet, held in memory,
+ * and counting them would overwrite the stored counts of that interval or push current intervals out.
+ *
+ * Events carry no reviewer, so the time spent on a path is measured from the last time any reviewer
+ * went to that path. This is exact as long as a path is viewed by one reviewer at a time.
+ */
+@Singleton
+public class TrackerRollup {
+
+    private static final Logger logger = LoggerFactory.getLogger(TrackerRollup.class);
+
+    private static final String ROLLUPS = "trackingRollups";
+    private static final String OTHER_PATH = "(other)";
+    private static final int MAX_PATHS = 100_000;
+    private static final long MAX_DWELL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int RETAINED_INTERVALS = 48;
+
+    private final StorageService storage;
+    private final long intervalMillis;
+
+    /**
+     * Identifies the counts of this backend instance in storage
+     */
+    private final String instance = UUID.randomUUID().toString().substring(0, 8);
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("tracker-rollup-flush-%d").setDaemon(true).build());
+
+    /**
+     * The ids of the paths, starting at 1 so no transition key is 0. Guarded by `this`.
+     */
+    private final Map<String, Integer> pathIds = new HashMap<>();
+    private final List<String> paths = new ArrayList<>();
+
+    /**
+     * The last time a reviewer went to a path, by the id of the path
+     */
+    private final LongLongMap enteredAt = new LongLongMap(1024);
+
+    /**
+     * The counts of the retained intervals, by the start of the interval
+     */
+    private final TreeMap<Long, Interval> intervals = new TreeMap<>();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    @Inject
+    public TrackerRollup(StorageService storage,
+                         @Named("tracker.rollup.interval") int intervalMinutes,
+                         @Named("tracker.rollup.flush.interval") int flushIntervalSeconds,
+                         MetricsService metrics) {
+        this.storage = storage;
+        this.intervalMillis = TimeUnit.MINUTES.toMillis(intervalMinutes);
+        paths.add(null);
+
+        metrics.register("tracker.rollup.paths", this::pathCount);
+        metrics.register("tracker.rollup.intervals", this::intervalCount);
+        metrics.register("tracker.rollup.dropped", dropped::get);
+
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalSeconds, flushIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Counts a tracker event in the interval of its time, unless that interval is outside the retained window.
+     */
+    public synchronized void record(Track event) {
+        long time = parseTime(event.time);
+        long now = System.currentTimeMillis();
+        long start = this.intervalStart(time);
+        if (start < this.oldestRetained(now) || time > now + intervalMillis) {
+            dropped.incrementAndGet();
+            return;
+        }
+        Interval interval = intervals.computeIfAbsent(start, Interval::new);
+        int oldId = this.pathId(event.oldPath);
+        int newId = this.pathId(event.newPath);
+
+        interval.transitions.add(((long) oldId << 32) | newId, 1);
+        long entered = enteredAt.get(oldId, -1);
+        if (entered >= 0 && time >= entered && time - entered <= MAX_DWELL_MILLIS) {
+            interval.dwellCount.add(oldId, 1);
+            interval.dwellTotal.add(oldId, time - entered);
+            interval.dwellMax.max(oldId, time - entered);
+        }
+        enteredAt.put(newId, time);
+        interval.dirty = true;
+    }
+
+    /**
+     * Stores the intervals that changed since the last flush, and forgets intervals that are no longer retained.
+     */
+    void flush() {
+        StorageService.Batch batch = storage.batch();
+        int changed = 0;
+        synchronized (this) {
+            for (Interval interval : intervals.values()) {
+                if (interval.dirty) {
+                    batch.set(ROLLUPS + "/" + interval.start + "/" + instance, this.toStorage(interval));
+                    interval.dirty = false;
+                    changed++;
+                }
+            }
+            intervals.headMap(this.oldestRetained(System.currentTimeMillis())).clear();
+        }
+        if (changed > 0) {
+            logger.debug("Storing " + changed + " tracker rollup intervals");
+            batch.commit().whenComplete((done, error) -> {
+                if (error != null) {
+                    logger.warn("Failed to store tracker rollups: " + error.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * Reports the most frequent transitions and the time spent on the most visited paths within a time range.
+     * The counts of this instance are taken from memory, those of other instances from storage.
+     *
+     * @param from The start of the time range, in milliseconds since the epoch
+     * @param to The end of the time range, in milliseconds since the epoch
+     * @param limit The number of transitions and paths to report
+     */
+    public CompletableFuture<TrackerRollupReport> query(long from, long to, int limit) {
+        long firstInterval = this.intervalStart(from);
+        Map<Long, Map<String, Object>> local = new HashMap<>();
+        synchronized (this) {
+            intervals.subMap(firstInterval, true, to, true)
+                    .forEach((start, interval) -> local.put(start, this.toStorage(interval)));
+        }
+
+        return storage.readRange(ROLLUPS, Long.toString(firstInterval), Long.toString(to)).thenApply(stored -> {
+            Report report = new Report();
+            stored.forEach((key, interval) -> {
+                long start;
+                try {
+                    start = Long.parseLong(key);
+                } catch (NumberFormatException e) {
+                    return;
+                }
+                if (interval instanceof Map) {
+                    ((Map<?, ?>) interval).forEach((instance, counts) -> {
+                        if (!(this.instance.equals(instance) && local.containsKey(start))) {
+                            report.add(counts);
+                        }
+                    });
+                }
+            });
+            local.values().forEach(report::add);
+            return report.build(from, to, limit);
+        });
+    }
+
+    private int pathId(String path) {
+        if (path == null) {
+            path = OTHER_PATH;
+        }
+        Integer id = pathIds.get(path);
+        if (id == null) {
+            if (paths.size() > MAX_PATHS) {
+                return this.pathId(OTHER_PATH);
+            }
+            id = paths.size();
+            paths.add(path);
+            pathIds.put(path, id);
+        }
+        return id;
+    }
+
+    private Map<String, Object> toStorage(Interval interval) {
+        Map<String, Object> transitions = new HashMap<>();
+        interval.transitions.forEach((key, count) -> {
+            Map<String, Object> transition = new HashMap<>();
+            transition.put("oldPath", paths.get((int) (key >>> 32)));
+            transition.put("newPath", paths.get((int) key));
+            transition.put("count", count);
+            transitions.put(storageKey(paths.get((int) (key >>> 32)) + "\n" + paths.get((int) key)), transition);
+        });
+
+        Map<String, Object> dwell = new HashMap<>();
+        interval.dwellCount.forEach((id, count) -> {
+            Map<String, Object> path = new HashMap<>();
+            path.put("path", paths.get((int) id));
+            path.put("count", count);
+            path.put("totalMillis", interval.dwellTotal.get(id, 0));
+            path.put("maxMillis", interval.dwellMax.get(id, 0));
+            dwell.put(storageKey(paths.get((int) id)), path);
+        });
+
+        Map<String, Object> stored = new HashMap<>();
+        stored.put("transitions", transitions);
+        stored.put("dwell", dwell);
+        return stored;
+    }
+
+    /**
+     * Paths contain characters that Firebase does not allow in keys, so they are keyed by their hash
+     */
+    private static String storageKey(String value) {
+        return Hashing.murmur3_128().hashString(value, StandardCharsets.UTF_8).toString();
+    }
+
+    private long intervalStart(long time) {
+        return time - Math.floorMod(time, intervalMillis);
+    }
+
+    /**
+     * The start of the oldest interval that is kept in memory at the given time
+     */
+    private long oldestRetained(long now) {
+        return this.intervalStart(now) - (RETAINED_INTERVALS - 1) * intervalMillis;
+    }
+
+    private static long parseTime(String time) {
+        try {
+            return Long.parseLong(time.trim());
+        } catch (NumberFormatException | NullPointerException e) {
+            return System.currentTimeMillis();
+        }
+    }
+
+    private synchronized int pathCount() {
+        return pathIds.size();
+    }
+
+    private synchronized int intervalCount() {
+        return intervals.size();
+    }
+
+    /**
+     * The counts of one interval, keyed by path ids
+     */
+    private static class Interval {
+        final long start;
+        final LongLongMap transitions = new LongLongMap(64);
+        final LongLongMap dwellCount = new LongLongMap(64);
+        final LongLongMap dwellTotal = new LongLongMap(64);
+        final LongLongMap dwellMax = new LongLongMap(64);
+        boolean dirty;
+
+        Interval(long start) {
+            this.start = start;
+        }
+    }
+
+    /**
+     * Adds up stored intervals into a report
+     */
+    private static class Report {
+        final Map<String, TrackerRollupReport.Transition> transitions = new HashMap<>();
+        final Map<String, long[]> dwell = new HashMap<>();
+
+        @SuppressWarnings("unchecked")
+        void add(Object stored) {
+            if (!(stored instanceof Map)) {
+                return;
+            }
+            Map<String, Object> counts = (Map<String, Object>) stored;
+            for (Map<String, Object> entry : children(counts.get("transitions"))) {
+                String oldPath = (String) entry.get("oldPath");
+                String newPath = (String) entry.get("newPath");
+                TrackerRollupReport.Transition transition =
+                        transitions.computeIfAbsent(oldPath + "\n" + newPath, key -> {
+                            TrackerRollupReport.Transition created = new TrackerRollupReport.Transition();
+                            created.oldPath = oldPath;
+                            created.newPath = newPath;
+                            return created;
+                        });
+                transition.count += number(entry.get("count"));
+            }
+            for (Map<String, Object> entry : children(counts.get("dwell"))) {
+                long[] path = dwell.computeIfAbsent((String) entry.get("path"), key -> new long[3]);
+                path[0] += number(entry.get("count"));
+                path[1] += number(entry.get("totalMillis"));
+                path[2] = Math.max(path[2], number(entry.get("maxMillis")));
+            }
+        }
+
+        TrackerRollupReport build(long from, long to, int limit) {
+            TrackerRollupReport report = new TrackerRollupReport();
+            report.from = from;
+            report.to = to;
+            report.transitions = transitions.values().stream()
+                    .sorted(Comparator.comparingLong((TrackerRollupReport.Transition t) -> t.count).reversed())
+                    .limit(limit)
+                    .collect(Collectors.toList());
+            report.dwell = dwell.entrySet().stream()
+                    .sorted(Comparator.comparingLong((Map.Entry<String, long[]> e) -> e.getValue()[0]).reversed())
+                    .limit(limit)
+                    .map(e -> {
+                        TrackerRollupReport.Dwell path = new TrackerRollupReport.Dwell();
+                        path.path = e.getKey();
+                        path.count = e.getValue()[0];
+                        path.meanMillis = path.count == 0 ? 0.0 : (double) e.getValue()[1] / path.count;
+                        path.maxMillis = e.getValue()[2];
+                        return path;
+                    })
+                    .collect(Collectors.toList());
+            return report;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static List<Map<String, Object>> children(Object node) {
+            List<Map<String, Object>> children = new ArrayList<>();
+            if (node instanceof Map) {
+                for (Object child : ((Map<String, Object>) node).values()) {
+                    if (child instanceof Map) {
+                        children.add((Map<String, Object>) child);
+                    }
+                }
+            }
+            return children;
+        }
+
+        private static long number(Object value) {
+            return value instanceof Number ? ((Number) value).longValue() : 0;
+        }
+    }
+}
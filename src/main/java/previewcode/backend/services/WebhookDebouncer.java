@@ -0,0 +1,132 @@
+package previewcode.backend.services;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses bursts of webhook events with the same key into the last event of the burst.
+ *
+ * The first event of a key starts a window. Events that arrive within the window replace the waiting event,
+ * and the event that is waiting when the window closes is handed to the {@link WebhookQueue}.
+ * Waiting events are handed over right away when the backend shuts down.
+ */
+@Singleton
+public class WebhookDebouncer {
+
+    private static final Logger logger = LoggerFactory.getLogger(WebhookDebouncer.class);
+
+    private final WebhookQueue queue;
+    private final long windowMillis;
+
+    private final Map<String, Waiting> waiting = new HashMap<>();
+    private boolean stopped;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("webhook-debounce-%d").setDaemon(true).build());
+
+    private final AtomicLong superseded = new AtomicLong();
+
+    @Inject
+    public WebhookDebouncer(WebhookQueue queue,
+                            @Named("webhook.synchronize.window") int windowMillis,
+                            MetricsService metrics,
+                            ShutdownRegistry shutdown) {
+        this.queue = queue;
+        this.windowMillis = windowMillis;
+
+        metrics.register("webhooks.debounce.superseded", superseded::get);
+        metrics.register("webhooks.debounce.waiting", this::waitingCount);
+
+        shutdown.register(ShutdownRegistry.Phase.INTAKE, "webhook debouncer", timeout -> this.flushAll());
+    }
+
+    /**
+     * Submits an event that only matters if no later event with the same key follows within the window.
+     *
+     * @param key The key of the event, usually the pull request it concerns
+     * @param description Describes the event in the log, e.g. the delivery id
+     * @param task The processing of the event
+     * @param onSuperseded Called when a later event replaces this one, instead of the task
+     * @throws RejectedExecutionException when the window is disabled and the queue rejects the event.
+     */
+    public void submit(String key, String description, WebhookQueue.Task task, Runnable onSuperseded) {
+        boolean debounce;
+        Waiting previous = null;
+        synchronized (this) {
+            debounce = windowMillis > 0 && !stopped;
+            if (debounce) {
+                previous = waiting.put(key, new Waiting(description, task, onSuperseded));
+                if (previous == null) {
+                    scheduler.schedule(() -> this.flush(key), windowMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        if (!debounce) {
+            queue.submit(key, description, task);
+        } else if (previous != null) {
+            logger.debug("Webhook {" + previous.description + "} is superseded by {" + description + "}");
+            superseded.incrementAndGet();
+            previous.onSuperseded.run();
+        }
+    }
+
+    private void flush(String key) {
+        Waiting event;
+        synchronized (this) {
+            event = waiting.remove(key);
+        }
+        if (event != null) {
+            this.handOver(key, event);
+        }
+    }
+
+    private void flushAll() {
+        List<Map.Entry<String, Waiting>> events;
+        synchronized (this) {
+            stopped = true;
+            events = new ArrayList<>(waiting.entrySet());
+            waiting.clear();
+        }
+        scheduler.shutdownNow();
+        events.forEach(event -> this.handOver(event.getKey(), event.getValue()));
+    }
+
+    private void handOver(String key, Waiting event) {
+        try {
+            queue.submit(key, event.description, event.task);
+        } catch (RejectedExecutionException e) {
+            logger.error("Webhook queue rejected debounced webhook {" + event.description + "}");
+        }
+    }
+
+    private synchronized int waitingCount() {
+        return waiting.size();
+    }
+
+    private static class Waiting {
+        final String description;
+        final WebhookQueue.Task task;
+        final Runnable onSuperseded;
+
+        Waiting(String description, WebhookQueue.Task task, Runnable onSuperseded) {
+            this.description = description;
+            this.task = task;
+            this.onSuperseded = onSuperseded;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package previewcode.backend.services;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the ids of recent webhook deliveries, so deliveries that GitHub sends again are only processed once.
+ *
+ * Delivery ids are UUIDs and are stored as two longs in open addressing tables, one table per generation.
+ * New ids go into the current generation, lookups check both generations. The current generation becomes
+ * the previous one when it is older than the window or half full, and the old previous generation is cleared.
+ * Ids are therefore remembered for at least the window, unless more ids than the capacity arrive within it.
+ */
+@Singleton
+public class WebhookDeliveryIndex {
+
+    /**
+     * Slots that never held an id. Ids are only indexed when they have a version,
+     * so they never equal one of the markers.
+     */
+    private static final long EMPTY = 0;
+
+    /**
+     * Slots whose id was forgotten.
+     */
+    private static final long FORGOTTEN = 1;
+
+    private final int slots;
+    private final int maxUsedSlots;
+    private final long windowMillis;
+
+    private Generation current;
+    private Generation previous;
+
+    private final AtomicLong deliveries = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+
+    @Inject
+    public WebhookDeliveryIndex(@Named("webhook.dedup.capacity") int capacity,
+                                @Named("webhook.dedup.window") int windowMinutes,
+                                MetricsService metrics) {
+        // Keep every table at most half full, so probe sequences stay short
+        this.slots = Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1) * 2;
+        this.maxUsedSlots = slots / 2;
+        this.windowMillis = TimeUnit.MINUTES.toMillis(windowMinutes);
+        this.current = new Generation(slots, System.currentTimeMillis());
+        this.previous = new Generation(slots, current.startedAt);
+
+        metrics.register("webhooks.deliveries.received", deliveries::get);
+        metrics.register("webhooks.deliveries.duplicates", duplicates::get);
+        metrics.register("webhooks.deliveries.duplicateRate", this::duplicateRate);
+    }
+
+    /**
+     * Remembers a delivery.
+     *
+     * @param delivery The value of the `X-GitHub-Delivery` header
+     * @return `false` if the delivery was seen before, `true` if it is new or cannot be indexed.
+     */
+    public synchronized boolean markSeen(String delivery) {
+        deliveries.incrementAndGet();
+        UUID id = parse(delivery);
+        if (id == null) {
+            return true;
+        }
+        long high = id.getMostSignificantBits();
+        long low = id.getLeastSignificantBits();
+
+        if (current.contains(high, low) || previous.contains(high, low)) {
+            duplicates.incrementAndGet();
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        if (current.used >= maxUsedSlots || now - current.startedAt >= windowMillis) {
+            Generation cleared = previous;
+            cleared.clear(now);
+            previous = current;
+            current = cleared;
+        }
+        current.add(high, low);
+        return true;
+    }
+
+    /**
+     * Forgets a delivery, so it is processed when it is delivered again.
+     * Used when a delivery is answered with an error.
+     *
+     * @param delivery The value of the `X-GitHub-Delivery` header
+     */
+    public synchronized void forget(String delivery) {
+        UUID id = parse(delivery);
+        if (id != null) {
+            current.remove(id.getMostSignificantBits(), id.getLeastSignificantBits());
+            previous.remove(id.getMostSignificantBits(), id.getLeastSignificantBits());
+        }
+    }
+
+    private double duplicateRate() {
+        long total = deliveries.get();
+        return total == 0 ? 0.0 : (double) duplicates.get() / total;
+    }
+
+    private static UUID parse(String delivery) {
+        if (delivery == null) {
+            return null;
+        }
+        try {
+            UUID id = UUID.fromString(delivery);
+            return id.version() == 0 ? null : id;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * An open addressing table with linear probing. Entry `i` occupies `table[2i]` and `table[2i + 1]`.
+     */
+    private static class Generation {
+        final long[] table;
+        final int mask;
+        long startedAt;
+
+        /**
+         * The number of slots that are not empty, including forgotten ones.
+         */
+        int used;
+
+        Generation(int slots, long startedAt) {
+            this.table = new long[slots * 2];
+            this.mask = slots - 1;
+            this.startedAt = startedAt;
+        }
+
+        boolean contains(long high, long low) {
+            return this.find(high, low) >= 0;
+        }
+
+        void add(long high, long low) {
+            int slot = this.home(high, low);
+            while (table[2 * slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            table[2 * slot] = high;
+            table[2 * slot + 1] = low;
+            used++;
+        }
+
+        void remove(long high, long low) {
+            int slot = this.find(high, low);
+            if (slot >= 0) {
+                // The slot stays in use, so probe sequences that pass through it are not cut short
+                table[2 * slot] = FORGOTTEN;
+                table[2 * slot + 1] = FORGOTTEN;
+            }
+        }
+
+        void clear(long now) {
+            Arrays.fill(table, EMPTY);
+            used = 0;
+            startedAt = now;
+        }
+
+        private int find(long high, long low) {
+            int slot = this.home(high, low);
+            while (table[2 * slot] != EMPTY) {
+                if (table[2 * slot] == high && table[2 * slot + 1] == low) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private int home(long high, long low) {
+            long hash = (high ^ Long.rotateLeft(low, 32)) * 0x9E3779B97F4A7C15L;
+            return (int) (hash >>> 32) & mask;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package previewcode.backend.services;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only journal of accepted webhook deliveries, so deliveries that were acknowledged to GitHub
+ * but not yet processed survive a restart.
+ *
+ * The journal is a sequence of segment files, each a {@link MappedLog}.
+ * A record is visible to the next process as soon as it is appended, the mapping is forced to disk
+ * in batches every flush interval to survive a crash of the machine as well.
+ * Every delivery gets a sequence number, and a completion record with that number once it is processed.
+ *
+ * A segment is deleted once every delivery in it and in all older segments is completed.
+ * Segments are only deleted oldest first, so a completion record is never lost while the delivery it completes
+ * is still in the journal.
+ *
+ * The payload of a record is `[byte type][long sequence]`, followed for appended deliveries by
+ * `[int length][event][int length][delivery][body]`.
+ */
+@Singleton
+public class WebhookJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(WebhookJournal.class);
+
+    private static final byte APPEND = 1;
+    private static final byte COMPLETE = 2;
+    private static final int RECORD_HEADER_SIZE = 1 + 8;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    /**
+     * A delivery read back from the journal.
+     */
+    public static class Entry {
+        public final long sequence;
+        public final String event;
+        public final String delivery;
+        public final byte[] body;
+
+        Entry(long sequence, String event, String delivery, byte[] body) {
+            this.sequence = sequence;
+            this.event = event;
+            this.delivery = delivery;
+            this.body = body;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+
+    /**
+     * The segments from oldest to newest. The newest segment is the one being appended to.
+     */
+    private final Deque<Segment> segments = new ArrayDeque<>();
+
+    /**
+     * The segment of every delivery that is not completed yet.
+     */
+    private final Map<Long, Segment> pending = new HashMap<>();
+
+    private List<Entry> unfinished;
+    private long nextSequence;
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("webhook-journal-flush-%d").setDaemon(true).build());
+
+    private final AtomicLong appends = new AtomicLong();
+    private final AtomicLong completions = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+
+    @Inject
+    public WebhookJournal(@Named("webhook.journal.directory") String directory,
+                          @Named("webhook.journal.segmentSize") int segmentSize,
+                          @Named("webhook.journal.flushInterval") int flushIntervalMillis,
+                          MetricsService metrics,
+                          ShutdownRegistry shutdown) throws IOException {
+        this.directory = Paths.get(directory);
+        this.segmentSize = segmentSize;
+        this.recover();
+
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+
+        metrics.register("webhooks.journal.appends", appends::get);
+        metrics.register("webhooks.journal.completions", completions::get);
+        metrics.register("webhooks.journal.flushes", flushes::get);
+        metrics.register("webhooks.journal.pending", this::pendingCount);
+        metrics.register("webhooks.journal.segments", this::segmentCount);
+
+        shutdown.register(ShutdownRegistry.Phase.PERSISTENCE, "webhook journal", timeout -> {
+            flusher.shutdown();
+            this.flush();
+        });
+    }
+
+    /**
+     * Appends a delivery to the journal.
+     *
+     * @param event The type of the event, from the `X-GitHub-Event` header
+     * @param delivery The id of the delivery, from the `X-GitHub-Delivery` header
+     * @param body The payload of the delivery
+     * @return The sequence number to complete the delivery with
+     */
+    public synchronized long append(String event, String delivery, byte[] body) {
+        byte[] eventBytes = bytes(event);
+        byte[] deliveryBytes = bytes(delivery);
+        int payloadSize = RECORD_HEADER_SIZE + 4 + eventBytes.length + 4 + deliveryBytes.length + body.length;
+
+        MappedLog log = this.reserve(payloadSize);
+        long sequence = nextSequence++;
+        log.append(payloadSize, buffer -> buffer.put(APPEND).putLong(sequence)
+                .putInt(eventBytes.length).put(eventBytes)
+                .putInt(deliveryBytes.length).put(deliveryBytes)
+                .put(body));
+
+        pending.put(sequence, segments.getLast());
+        segments.getLast().pending++;
+        appends.incrementAndGet();
+        return sequence;
+    }
+
+    /**
+     * Marks a delivery as processed, so it is not replayed after a restart.
+     *
+     * @param sequence The sequence number returned when the delivery was appended
+     */
+    public synchronized void complete(long sequence) {
+        Segment segment = pending.remove(sequence);
+        if (segment == null) {
+            return;
+        }
+        this.reserve(RECORD_HEADER_SIZE)
+                .append(RECORD_HEADER_SIZE, buffer -> buffer.put(COMPLETE).putLong(sequence));
+
+        segment.pending--;
+        completions.incrementAndGet();
+        this.compact();
+    }
+
+    /**
+     * Returns the deliveries that were not completed before the last shutdown, in the order they were appended.
+     * They are only returned by the first call.
+     */
+    public synchronized List<Entry> takeUnfinished() {
+        List<Entry> entries = unfinished;
+        unfinished = new ArrayList<>();
+        return entries;
+    }
+
+    /**
+     * Forces the appended records to disk.
+     */
+    private void flush() {
+        MappedLog log;
+        synchronized (this) {
+            log = segments.getLast().log;
+        }
+        if (log.flush()) {
+            flushes.incrementAndGet();
+        }
+    }
+
+    /**
+     * Makes room for a record in the current segment, starting a new segment if it is full.
+     *
+     * @return The log of the segment to append the record to
+     */
+    private MappedLog reserve(int payloadSize) {
+        Segment current = segments.getLast();
+        if (!current.log.fits(payloadSize)) {
+            current.log.flush();
+            try {
+                segments.add(this.createSegment(nextSequence,
+                        Math.max(segmentSize, MappedLog.HEADER_SIZE + payloadSize)));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to create webhook journal segment", e);
+            }
+            this.compact();
+        }
+        return segments.getLast().log;
+    }
+
+    /**
+     * Deletes the oldest segments as long as all their deliveries are completed.
+     */
+    private void compact() {
+        while (segments.size() > 1 && segments.getFirst().pending == 0) {
+            Segment segment = segments.removeFirst();
+            try {
+                Files.deleteIfExists(segment.log.path);
+                logger.debug("Deleted completed webhook journal segment " + segment.log.path);
+            } catch (IOException e) {
+                logger.warn("Failed to delete webhook journal segment " + segment.log.path, e);
+            }
+        }
+    }
+
+    /**
+     * Reads all segments, and collects the deliveries that were never completed.
+     */
+    private void recover() throws IOException {
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        // Segment names hold the zero padded first sequence number, so they sort in order
+        files.sort(null);
+
+        Map<Long, ByteBuffer> payloads = new LinkedHashMap<>();
+        long lastSequence = 0;
+        for (Path file : files) {
+            Segment segment = Segment.open(file);
+            segments.add(segment);
+            // A segment may hold only completions, its name still reserves its first sequence number
+            lastSequence = Math.max(lastSequence, Math.max(segment.firstSequence, this.scan(segment, payloads)));
+        }
+
+        this.nextSequence = lastSequence + 1;
+        this.unfinished = new ArrayList<>();
+        payloads.forEach((sequence, payload) -> unfinished.add(readEntry(sequence, payload)));
+        segments.add(this.createSegment(nextSequence, segmentSize));
+        this.compact();
+
+        logger.info("Webhook journal opened with " + unfinished.size() + " unfinished deliveries in "
+                + segments.size() + " segments");
+    }
+
+    /**
+     * Reads the records of a segment up to the first record that is incomplete or corrupt.
+     *
+     * @return The highest sequence number found.
+     */
+    private long scan(Segment segment, Map<Long, ByteBuffer> payloads) {
+        long lastSequence = 0;
+        for (ByteBuffer record : segment.log.records()) {
+            if (record.remaining() < RECORD_HEADER_SIZE) {
+                break;
+            }
+            byte type = record.get();
+            long sequence = record.getLong();
+            if (type == APPEND) {
+                // Only the payloads that turn out to be unfinished are copied out of the mapping
+                payloads.put(sequence, record.slice());
+                pending.put(sequence, segment);
+                segment.pending++;
+            } else if (type == COMPLETE) {
+                Segment owner = pending.remove(sequence);
+                if (owner != null) {
+                    owner.pending--;
+                    payloads.remove(sequence);
+                }
+            } else {
+                break;
+            }
+            lastSequence = Math.max(lastSequence, sequence);
+        }
+        return lastSequence;
+    }
+
+    private Segment createSegment(long firstSequence, int size) throws IOException {
+        Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+        return new Segment(firstSequence, MappedLog.create(path, size));
+    }
+
+    private static Entry readEntry(long sequence, ByteBuffer payload) {
+        String event = readString(payload);
+        String delivery = readString(payload);
+        byte[] body = new byte[payload.remaining()];
+        payload.get(body);
+        return new Entry(sequence, event, delivery, body);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    private synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    private static class Segment {
+        final long firstSequence;
+        final MappedLog log;
+
+        /**
+         * The number of deliveries in this segment that are not completed yet.
+         */
+        int pending;
+
+        Segment(long firstSequence, MappedLog log) {
+            this.firstSequence = firstSequence;
+            this.log = log;
+        }
+
+        static Segment open(Path path) throws IOException {
+            String name = path.getFileName().toString();
+            long firstSequence = Long.parseLong(
+                    name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            return new Segment(firstSequence, MappedLog.open(path));
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package previewcode.backend.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import previewcode.backend.DTO.GitHubPullRequest;
+import previewcode.backend.DTO.GitHubRepository;
+import previewcode.backend.DTO.OrderingStatus;
+import previewcode.backend.DTO.PRComment;
+import previewcode.backend.DTO.PullRequestIdentifier;
+import previewcode.backend.DTO.WebhookPayload;
+import previewcode.backend.api.exceptionmapper.GitHubApiException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Handles verified `pull_request` webhook events.
+ *
+ * Events that need work are written to the {@link WebhookJournal} before they are acknowledged,
+ * and processed on the {@link WebhookQueue} afterwards. Events that were not processed before a restart
+ * are replayed from the journal at startup.
+ * Processing acts with a fresh token of the installation that sent the event,
+ * since it may happen long after the delivery was acknowledged.
+ *
+ * An event whose processing fails for a reason that may pass, like a GitHub outage, stays unfinished in the journal
+ * and is forgotten by the {@link WebhookDeliveryIndex}, so it is replayed at the next start or processed when GitHub
+ * delivers it again, whichever comes first.
+ */
+@Singleton
+public class WebhookProcessor {
+
+    private static final Logger logger = LoggerFactory.getLogger(WebhookProcessor.class);
+
+    private static final String PULL_REQUEST_EVENT = "pull_request";
+
+    private static final Provider<GitHubSession> NO_USER_SESSION = () -> {
+        throw new IllegalStateException("Webhooks are not processed on behalf of a user");
+    };
+
+    /**
+     * The outcome of handing an event to the processor.
+     */
+    public enum Result {
+        /**
+         * The event is queued for processing.
+         */
+        ACCEPTED,
+        /**
+         * The event needs no processing.
+         */
+        IGNORED,
+        /**
+         * The event needs processing, but the queue is full.
+         */
+        REJECTED
+    }
+
+    private final WebhookQueue queue;
+    private final WebhookDebouncer debouncer;
+    private final WebhookJournal journal;
+    private final WebhookDeliveryIndex deliveries;
+    private final InstallationTokenCache installationTokens;
+    private final GitHubApiClient api;
+    private final GitHubMetadataCache metadataCache;
+    private final StorageService storageService;
+
+    /**
+     * The journal entries of deliveries that failed to be processed, by delivery id.
+     * When a delivery comes in again, its old entry is completed so it is not replayed as well.
+     */
+    private final Cache<String, Long> failedDeliveries = CacheBuilder.newBuilder()
+            .maximumSize(10_000)
+            .build();
+
+    @Inject
+    public WebhookProcessor(WebhookQueue queue,
+                            WebhookDebouncer debouncer,
+                            WebhookJournal journal,
+                            WebhookDeliveryIndex deliveries,
+                            InstallationTokenCache installationTokens,
+                            GitHubApiClient api,
+                            GitHubMetadataCache metadataCache,
+                            StorageService storageService) {
+        this.queue = queue;
+        this.debouncer = debouncer;
+        this.journal = journal;
+        this.deliveries = deliveries;
+        this.installationTokens = installationTokens;
+        this.api = api;
+        this.metadataCache = metadataCache;
+        this.storageService = storageService;
+    }
+
+    /**
+     * Journals and queues a `pull_request` event if it needs processing.
+     *
+     * @param delivery The id of the delivery
+     * @param payload The payload of the event
+     * @throws IOException when the payload holds no valid pull request.
+     */
+    public Result onPullRequest(String delivery, WebhookPayload payload) throws IOException {
+        PullRequestEvent event = this.readEvent(payload);
+        if (event == null) {
+            return Result.IGNORED;
+        }
+
+        long sequence = journal.append(PULL_REQUEST_EVENT, delivery, payload.body);
+        Long failed = failedDeliveries.getIfPresent(delivery);
+        if (failed != null) {
+            // The new entry replaces the one of the failed attempt
+            failedDeliveries.invalidate(delivery);
+            journal.complete(failed);
+        }
+        try {
+            this.submit(sequence, delivery, event);
+            return Result.ACCEPTED;
+        } catch (RejectedExecutionException e) {
+            // The delivery is answered with an error, so it must not be replayed later on
+            journal.complete(sequence);
+            return Result.REJECTED;
+        }
+    }
+
+    /**
+     * Queues the events that were journaled but not processed before the last shutdown.
+     * The deliveries were acknowledged already, so this waits for room in the queue instead of dropping them.
+     * Replayed events are not debounced. Events that can not be queued stay unfinished in the journal,
+     * so they are replayed at the next start.
+     */
+    public void replay() {
+        for (WebhookJournal.Entry entry : journal.takeUnfinished()) {
+            logger.info("Replaying webhook {" + entry.delivery + "} from the journal");
+            PullRequestEvent event;
+            try {
+                event = this.readEvent(WebhookPayload.parse(entry.body));
+            } catch (IOException | RuntimeException e) {
+                logger.error("Failed to replay webhook {" + entry.delivery + "}:", e);
+                journal.complete(entry.sequence);
+                continue;
+            }
+            if (event == null) {
+                journal.complete(entry.sequence);
+                continue;
+            }
+
+            try {
+                queue.put(event.key(), entry.delivery, this.task(entry.sequence, entry.delivery, event));
+            } catch (RejectedExecutionException e) {
+                logger.warn("Webhook queue is shut down, leaving the rest of the journal for the next start");
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("Interrupted, leaving the rest of the journal for the next start");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queues the processing of an event. A `synchronize` event only sets the pending status,
+     * so a burst of them is debounced into the last one. The journal entries of the events
+     * it supersedes are completed right away, since the last event is journaled itself.
+     */
+    private void submit(long sequence, String delivery, PullRequestEvent event) {
+        WebhookQueue.Task task = this.task(sequence, delivery, event);
+        if (event.action.equals("synchronize")) {
+            debouncer.submit(event.key(), delivery, task, () -> journal.complete(sequence));
+        } else {
+            queue.submit(event.key(), delivery, task);
+        }
+    }
+
+    /**
+     * Processes an event and completes its journal entry, unless it failed in a way that may succeed later.
+     */
+    private WebhookQueue.Task task(long sequence, String delivery, PullRequestEvent event) {
+        return () -> {
+            try {
+                this.process(event);
+            } catch (Exception e) {
+                if (isRetryable(e)) {
+                    logger.warn("Leaving webhook {" + delivery + "} to be delivered again or replayed");
+                    failedDeliveries.put(delivery, sequence);
+                    deliveries.forget(delivery);
+                } else {
+                    journal.complete(sequence);
+                }
+                throw e;
+            }
+            journal.complete(sequence);
+        };
+    }
+
+    /**
+     * Whether processing an event again may succeed: network failures, server errors and rate limits pass,
+     * while GitHub refusing the request for good, e.g. because the pull request is gone, does not.
+     */
+    private static boolean isRetryable(Exception e) {
+        if (e instanceof GitHubApiException) {
+            Integer status = ((GitHubApiException) e).statusCode;
+            return status == null || status >= 500 || status == 403 || status == 429;
+        }
+        return e instanceof IOException || e instanceof UncheckedIOException;
+    }
+
+    /**
+     * Reads the parts of a `pull_request` event we act on,
+     * and remembers the immutable facts of the pull request.
+     *
+     * @return The event, or `null` if the action needs no processing.
+     */
+    private PullRequestEvent readEvent(WebhookPayload payload) throws JsonProcessingException {
+        String action = payload.action();
+        logger.info("Handling `" + action + "` pull request...");
+        if (!"opened".equals(action) && !"synchronize".equals(action)) {
+            return null;
+        }
+
+        GitHubRepository repo = payload.repository();
+        GitHubPullRequest pullRequest = payload.pullRequest();
+        metadataCache.rememberPullRequest(repo.owner.login, repo.name, pullRequest);
+        return new PullRequestEvent(action, payload.installationId(), repo, pullRequest);
+    }
+
+    private void process(PullRequestEvent event) throws IOException {
+        AsyncGithubService githubService = this.connect(event.installationId);
+        OrderingStatus pendingStatus = new OrderingStatus(event.pullRequest, event.repository);
+
+        if (event.action.equals("opened")) {
+            PRComment comment = new PRComment(constructMarkdownComment(event.repository, event.pullRequest));
+            GitHubApiClient.await(CompletableFuture.allOf(
+                    storageService.addDefaultData(new PullRequestIdentifier(event.repository, event.pullRequest)),
+                    githubService.placePullRequestComment(event.pullRequest, comment),
+                    githubService.setOrderingStatus(event.pullRequest, pendingStatus)));
+        } else {
+            GitHubApiClient.await(githubService.setOrderingStatus(event.pullRequest, pendingStatus));
+        }
+    }
+
+    /**
+     * Connects to GitHub as the given installation.
+     */
+    private AsyncGithubService connect(String installationId) throws IOException {
+        String installationToken = installationTokens.getToken(installationId);
+        return new AsyncGithubService(api, metadataCache,
+                GithubService.TokenBuilder.forInstallation(installationToken), NO_USER_SESSION);
+    }
+
+    private static String constructMarkdownComment(GitHubRepository repo, GitHubPullRequest pullRequest) {
+        return "This pull request can be reviewed with [Preview Code](" + pullRequest.previewCodeUrl(repo) + ").\n" +
+               "To speed up the review process and get better feedback on your changes, " +
+               "please **[order your changes](" + pullRequest.previewCodeUrl(repo) + ").**\n";
+    }
+
+    /**
+     * The parts of a `pull_request` event needed to process it.
+     */
+    private static class PullRequestEvent {
+        final String action;
+        final String installationId;
+        final GitHubRepository repository;
+        final GitHubPullRequest pullRequest;
+
+        PullRequestEvent(String action, String installationId,
+                         GitHubRepository repository, GitHubPullRequest pullRequest) {
+            this.action = action;
+            this.installationId = installationId;
+            this.repository = repository;
+            this.pullRequest = pullRequest;
+        }
+
+        /**
+         * Events of the same pull request share a key, so they are processed in order.
+         */
+        String key() {
+            return repository.owner.login.toLowerCase() + "/" + repository.name.toLowerCase()
+                    + "/" + pullRequest.number;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package previewcode.backend.services;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes webhook events after their delivery has been acknowledged.
+ *
+ * Events are spread over a fixed number of lanes by their key, usually the pull request they concern.
+ * Each lane processes its events one at a time in the order they were submitted,
+ * so events of one pull request never overtake each other while different pull requests are processed in parallel.
+ */
+@Singleton
+public class WebhookQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(WebhookQueue.class);
+
+    /**
+     * The work to do for a webhook event.
+     */
+    @FunctionalInterface
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * How long {@link #put} waits before it tries a full lane again
+     */
+    private static final long PUT_RETRY_MILLIS = 50;
+
+    private final ExecutorService[] lanes;
+
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final MetricsService.Timer waitTime;
+    private final MetricsService.Timer processingTime;
+
+    @Inject
+    public WebhookQueue(@Named("webhook.workers") int workers,
+                        @Named("webhook.queue.capacity") int capacity,
+                        MetricsService metrics,
+                        ShutdownRegistry shutdown) {
+        ThreadFactory threads = new ThreadFactoryBuilder().setNameFormat("webhook-worker-%d").build();
+        int laneCapacity = Math.max(1, capacity / workers);
+
+        this.lanes = new ExecutorService[workers];
+        for (int i = 0; i < workers; i++) {
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(laneCapacity), threads);
+        }
+
+        metrics.register("webhooks.queue.depth", depth::get);
+        metrics.register("webhooks.processed", processed::get);
+        metrics.register("webhooks.failed", failed::get);
+        metrics.register("webhooks.rejected", rejected::get);
+        this.waitTime = metrics.timer("webhooks.waitTime");
+        this.processingTime = metrics.timer("webhooks.processingTime");
+
+        shutdown.register(ShutdownRegistry.Phase.PROCESSING, "webhook queue", this::drain);
+    }
+
+    /**
+     * Queues the processing of a webhook event.
+     *
+     * @param key Events with the same key are processed in the order they are submitted
+     * @param description Describes the event in the log, e.g. the delivery id
+     * @param task The processing of the event
+     * @throws RejectedExecutionException when the lane of the key is full or the queue is shut down.
+     */
+    public void submit(String key, String description, Task task) {
+        if (!this.offer(key, description, task)) {
+            rejected.incrementAndGet();
+            logger.warn("Webhook queue is full, rejecting {" + description + "}");
+            throw new RejectedExecutionException("Webhook queue is full");
+        }
+    }
+
+    /**
+     * Queues the processing of a webhook event, waiting for room if the lane of the key is full.
+     * Used for events that were already acknowledged, which must not be dropped.
+     *
+     * @param key Events with the same key are processed in the order they are submitted
+     * @param description Describes the event in the log, e.g. the delivery id
+     * @param task The processing of the event
+     * @throws RejectedExecutionException when the queue is shut down.
+     * @throws InterruptedException when interrupted while waiting for room.
+     */
+    public void put(String key, String description, Task task) throws InterruptedException {
+        while (!this.offer(key, description, task)) {
+            if (this.lane(key).isShutdown()) {
+                throw new RejectedExecutionException("Webhook queue is shut down");
+            }
+            Thread.sleep(PUT_RETRY_MILLIS);
+        }
+    }
+
+    /**
+     * Queues an event if its lane has room.
+     *
+     * @return Whether the event is queued
+     */
+    private boolean offer(String key, String description, Task task) {
+        long enqueuedAt = System.nanoTime();
+        depth.incrementAndGet();
+        try {
+            this.lane(key).execute(() -> {
+                depth.decrementAndGet();
+                waitTime.recordSince(enqueuedAt);
+                long startedAt = System.nanoTime();
+                try {
+                    task.run();
+                    processed.incrementAndGet();
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    logger.error("Failed to process webhook {" + description + "}:", e);
+                } finally {
+                    processingTime.recordSince(startedAt);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            depth.decrementAndGet();
+            return false;
+        }
+    }
+
+    private ExecutorService lane(String key) {
+        return lanes[Math.floorMod(key.hashCode(), lanes.length)];
+    }
+
+    /**
+     * Stops accepting events and waits for the queued events to be processed.
+     */
+    private void drain(Duration timeout) throws InterruptedException {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+        long deadline = System.nanoTime() + timeout.toNanos();
+        for (ExecutorService lane : lanes) {
+            if (!lane.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                logger.warn("Webhook queue did not drain in time, " + depth.get() + " events are dropped");
+                return;
+            }
+        }
+    }
+}
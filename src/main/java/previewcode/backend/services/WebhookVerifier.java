@@ -0,0 +1,133 @@
+package previewcode.backend.services;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Reads and verifies the bodies of webhook calls.
+ *
+ * Bodies are read into a single byte array of at most the configured size, and signed as they were received.
+ * Every thread keeps its own initialised {@link Mac} instances, so verifying a call allocates nothing but the digest.
+ * Signatures are compared in constant time on their raw bytes.
+ */
+@Singleton
+public class WebhookVerifier {
+
+    public static final String SHA256_SIGNATURE_HEADER = "X-Hub-Signature-256";
+    public static final String SHA1_SIGNATURE_HEADER = "X-Hub-Signature";
+
+    private static final String SHA256_PREFIX = "sha256=";
+    private static final String SHA1_PREFIX = "sha1=";
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    private final int maxPayloadBytes;
+    private final ThreadLocal<Mac> sha256;
+    private final ThreadLocal<Mac> sha1;
+
+    @Inject
+    public WebhookVerifier(@Named("github.webhook.secret") SecretKeySpec secret,
+                           @Named("webhook.maxPayloadBytes") int maxPayloadBytes) {
+        this.maxPayloadBytes = maxPayloadBytes;
+        SecretKeySpec sha256Secret = new SecretKeySpec(secret.getEncoded(), "HmacSHA256");
+        SecretKeySpec sha1Secret = new SecretKeySpec(secret.getEncoded(), "HmacSHA1");
+        this.sha256 = ThreadLocal.withInitial(() -> createMac(sha256Secret));
+        this.sha1 = ThreadLocal.withInitial(() -> createMac(sha1Secret));
+    }
+
+    /**
+     * Thrown when a webhook body exceeds the maximum payload size.
+     */
+    public static class PayloadTooLargeException extends IOException {
+        public PayloadTooLargeException(int maxPayloadBytes) {
+            super("Webhook payload exceeds " + maxPayloadBytes + " bytes");
+        }
+    }
+
+    /**
+     * Reads a webhook body, without ever buffering more than the maximum payload size.
+     *
+     * @param body The body stream
+     * @param contentLength The announced length of the body, or -1 if unknown
+     * @throws PayloadTooLargeException as soon as the body turns out to be too large.
+     */
+    public byte[] readPayload(InputStream body, int contentLength) throws IOException {
+        if (contentLength > maxPayloadBytes) {
+            throw new PayloadTooLargeException(maxPayloadBytes);
+        }
+        byte[] buffer = new byte[contentLength >= 0 ? contentLength : Math.min(INITIAL_BUFFER_SIZE, maxPayloadBytes)];
+        int size = 0;
+        while (true) {
+            if (size == buffer.length) {
+                // The buffer is full, only grow it if the body does not end here
+                int next = body.read();
+                if (next < 0) {
+                    return buffer;
+                }
+                if (size >= maxPayloadBytes) {
+                    throw new PayloadTooLargeException(maxPayloadBytes);
+                }
+                buffer = Arrays.copyOf(buffer,
+                        (int) Math.min(maxPayloadBytes, Math.max(INITIAL_BUFFER_SIZE, buffer.length * 2L)));
+                buffer[size++] = (byte) next;
+            } else {
+                int read = body.read(buffer, size, buffer.length - size);
+                if (read < 0) {
+                    return Arrays.copyOf(buffer, size);
+                }
+                size += read;
+            }
+        }
+    }
+
+    /**
+     * Verifies that a webhook body was signed with our webhook secret.
+     * The SHA-256 signature is checked when GitHub sent one, the SHA-1 signature otherwise.
+     *
+     * @param sha256Signature The value of the `X-Hub-Signature-256` header, may be `null`
+     * @param sha1Signature The value of the `X-Hub-Signature` header, may be `null`
+     * @param body The body as it was received
+     * @return whether the signature matches the body.
+     */
+    public boolean verify(String sha256Signature, String sha1Signature, byte[] body) {
+        if (sha256Signature != null) {
+            return matches(sha256.get(), SHA256_PREFIX, sha256Signature, body);
+        } else if (sha1Signature != null) {
+            return matches(sha1.get(), SHA1_PREFIX, sha1Signature, body);
+        }
+        return false;
+    }
+
+    private static boolean matches(Mac mac, String prefix, String signature, byte[] body) {
+        if (!signature.startsWith(prefix)) {
+            return false;
+        }
+        byte[] received;
+        try {
+            received = Hex.decodeHex(signature.substring(prefix.length()).toCharArray());
+        } catch (DecoderException e) {
+            return false;
+        }
+        return MessageDigest.isEqual(mac.doFinal(body), received);
+    }
+
+    private static Mac createMac(SecretKeySpec secret) {
+        try {
+            Mac mac = Mac.getInstance(secret.getAlgorithm());
+            mac.init(secret);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to initialise " + secret.getAlgorithm(), e);
+        }
+    }
+}
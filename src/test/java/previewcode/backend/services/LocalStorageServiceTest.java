@@ -0,0 +1,129 @@
+package previewcode.backend.services;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class LocalStorageServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ShutdownRegistry shutdown;
+    private MetricsService metrics;
+
+    @After
+    public void close() {
+        if (shutdown != null) {
+            shutdown.shutdown(Duration.ofSeconds(5));
+        }
+    }
+
+    @Test
+    public void recoversCommittedBatches() throws Exception {
+        LocalStorageService storage = this.open(64 * 1024);
+        storage.batch().set("test/a", "first").set("test/b", 2).commit().join();
+        storage.batch().set("test/a", "second").commit().join();
+
+        storage = this.reopen(64 * 1024);
+        Map<String, Object> children = this.read(storage);
+        assertEquals("second", children.get("a"));
+        assertEquals(2L, children.get("b"));
+    }
+
+    @Test
+    public void recoversUpToTornRecord() throws Exception {
+        LocalStorageService storage = this.open(64 * 1024);
+        storage.batch().set("test/a", "kept").commit().join();
+        storage.batch().set("test/b", "kept").commit().join();
+        shutdown.shutdown(Duration.ofSeconds(5));
+        shutdown = null;
+
+        // A record whose header was written, but whose payload was cut off by a crash
+        File log = this.logFile();
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            file.seek(endOfRecords(Files.readAllBytes(log.toPath())));
+            file.writeInt(1000);
+            file.writeInt(12345);
+            file.write("{\"test/c\":".getBytes("UTF-8"));
+        }
+
+        storage = this.open(64 * 1024);
+        Map<String, Object> children = this.read(storage);
+        assertEquals(2, children.size());
+        assertEquals("kept", children.get("a"));
+        assertEquals("kept", children.get("b"));
+
+        // The recovered storage starts a new log, so later writes are recovered as well
+        storage.batch().set("test/c", "after").commit().join();
+        storage = this.reopen(64 * 1024);
+        assertEquals("after", this.read(storage).get("c"));
+    }
+
+    @Test
+    public void compactsFullLog() throws Exception {
+        LocalStorageService storage = this.open(4096);
+        for (int i = 0; i < 500; i++) {
+            storage.batch().set("test/key" + (i % 10), "value " + i).commit().join();
+        }
+        assertTrue(((Number) metrics.snapshot().get("storage.local.compactions")).longValue() > 0);
+        assertEquals(1, folder.getRoot().listFiles((dir, name) -> name.endsWith(".log")).length);
+
+        storage = this.reopen(4096);
+        Map<String, Object> children = this.read(storage);
+        assertEquals(10, children.size());
+        for (int i = 490; i < 500; i++) {
+            assertEquals("value " + i, children.get("key" + (i % 10)));
+        }
+    }
+
+    private LocalStorageService open(int logSize) throws IOException {
+        shutdown = new ShutdownRegistry();
+        metrics = new MetricsService();
+        return new LocalStorageService(folder.getRoot().getPath(), logSize, 60_000, metrics, shutdown);
+    }
+
+    private LocalStorageService reopen(int logSize) throws IOException {
+        shutdown.shutdown(Duration.ofSeconds(5));
+        return this.open(logSize);
+    }
+
+    private Map<String, Object> read(LocalStorageService storage) {
+        return storage.readRange("test", "a", "z").join();
+    }
+
+    private File logFile() {
+        File[] logs = folder.getRoot().listFiles((dir, name) -> name.endsWith(".log"));
+        assertNotNull(logs);
+        assertEquals(1, logs.length);
+        return logs[0];
+    }
+
+    /**
+     * The offset after the last record of a log, whose unused space is zeroed
+     */
+    private static int endOfRecords(byte[] log) {
+        ByteBuffer buffer = ByteBuffer.wrap(log);
+        while (buffer.remaining() >= 8) {
+            int size = buffer.getInt(buffer.position());
+            if (size <= 0) {
+                break;
+            }
+            buffer.position(buffer.position() + 8 + size);
+        }
+        return buffer.position();
+    }
+}
@@ -0,0 +1,75 @@
+package previewcode.backend.services;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class LongLongMapTest {
+
+    @Test
+    public void returnsMissingValueForUnknownKeys() {
+        LongLongMap map = new LongLongMap(4);
+        assertEquals(-1, map.get(42, -1));
+        map.put(42, 7);
+        assertEquals(7, map.get(42, -1));
+        assertEquals(-1, map.get(43, -1));
+    }
+
+    @Test
+    public void addsAndRaisesValues() {
+        LongLongMap map = new LongLongMap(4);
+        map.add(1, 3);
+        map.add(1, 4);
+        map.max(2, 5);
+        map.max(2, 3);
+        assertEquals(7, map.get(1, 0));
+        assertEquals(5, map.get(2, 0));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void keepsAllEntriesWhenGrowing() {
+        LongLongMap map = new LongLongMap(1);
+        for (long key = 1; key <= 10_000; key++) {
+            map.put(key, key * 3);
+        }
+        assertEquals(10_000, map.size());
+        for (long key = 1; key <= 10_000; key++) {
+            assertEquals(key * 3, map.get(key, -1));
+        }
+    }
+
+    @Test
+    public void resolvesCollidingKeys() {
+        // Keys that differ only in their high bits, as transition keys of the same old path do
+        LongLongMap map = new LongLongMap(16);
+        Map<Long, Long> expected = new HashMap<>();
+        for (long i = 1; i <= 100; i++) {
+            long key = (i << 32) | 7;
+            map.add(key, i);
+            map.add(key, i);
+            expected.put(key, 2 * i);
+        }
+
+        Map<Long, Long> actual = new HashMap<>();
+        map.forEach(actual::put);
+        assertEquals(expected, actual);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroKey() {
+        new LongLongMap(4).put(0, 1);
+    }
+
+    @Test
+    public void forgetsEntriesWhenCleared() {
+        LongLongMap map = new LongLongMap(4);
+        map.put(5, 1);
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(-1, map.get(5, -1));
+    }
+}
@@ -0,0 +1,71 @@
+package previewcode.backend.services;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MappedLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsBackAppendedRecords() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("test.log");
+        MappedLog log = MappedLog.create(path, 1024);
+        log.append(bytes("first"));
+        log.append(4 + 6, buffer -> buffer.putInt(42).put(bytes("second")));
+        assertEquals(2 * MappedLog.HEADER_SIZE + 5 + 10, log.position());
+
+        List<ByteBuffer> records = MappedLog.open(path).records();
+        assertEquals(2, records.size());
+        assertEquals("first", string(records.get(0)));
+        assertEquals(42, records.get(1).getInt());
+        assertEquals("second", string(records.get(1)));
+    }
+
+    @Test
+    public void stopsAtCorruptRecord() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("test.log");
+        MappedLog log = MappedLog.create(path, 1024);
+        log.append(bytes("kept"));
+        log.append(bytes("corrupted"));
+        log.append(bytes("after"));
+        assertTrue(log.flush());
+        assertFalse(log.flush());
+
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.seek(2 * MappedLog.HEADER_SIZE + 4);
+            file.writeByte('C');
+        }
+
+        List<ByteBuffer> records = MappedLog.open(path).records();
+        assertEquals(1, records.size());
+        assertEquals("kept", string(records.get(0)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyRecords() throws Exception {
+        MappedLog.create(folder.getRoot().toPath().resolve("test.log"), 1024).append(new byte[0]);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,87 @@
+package previewcode.backend.services;
+
+import org.junit.Test;
+import previewcode.backend.DTO.Ordering;
+import previewcode.backend.DTO.TitleDescription;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OrderingServiceTest {
+
+    @Test
+    public void writesNothingForSameOrdering() {
+        List<Ordering> stored = Arrays.asList(group("a", "h1", "h2"), group("b", "h3"));
+        List<Ordering> updated = Arrays.asList(group("a", "h1", "h2"), group("b", "h3"));
+        assertTrue(OrderingService.changedGroups(OrderingService.hashes(stored), updated).isEmpty());
+    }
+
+    @Test
+    public void writesGroupsThatChanged() {
+        List<Ordering> stored = Arrays.asList(group("a", "h1", "h2"), group("b", "h3"), group("c", "h4"));
+        List<Ordering> updated = Arrays.asList(group("a", "h1"), group("b", "h3"), group("c", "h4", "h2"));
+
+        Map<Integer, Ordering> changed = OrderingService.changedGroups(OrderingService.hashes(stored), updated);
+        assertEquals(Arrays.asList(0, 2), new ArrayList<>(changed.keySet()));
+        assertSame(updated.get(0), changed.get(0));
+        assertSame(updated.get(2), changed.get(2));
+    }
+
+    @Test
+    public void writesGroupsWithChangedTitle() {
+        List<Ordering> stored = Arrays.asList(group("a", "h1"), group("b", "h2"));
+        List<Ordering> updated = Arrays.asList(group("a", "h1"), group("b", "h2"));
+        updated.get(1).info.title = "Renamed";
+
+        Map<Integer, Ordering> changed = OrderingService.changedGroups(OrderingService.hashes(stored), updated);
+        assertEquals(Arrays.asList(1), new ArrayList<>(changed.keySet()));
+    }
+
+    @Test
+    public void writesSwappedGroupsAtBothIndices() {
+        List<Ordering> stored = Arrays.asList(group("a", "h1"), group("b", "h2"), group("c", "h3"));
+        List<Ordering> updated = Arrays.asList(group("c", "h3"), group("b", "h2"), group("a", "h1"));
+
+        Map<Integer, Ordering> changed = OrderingService.changedGroups(OrderingService.hashes(stored), updated);
+        assertEquals(Arrays.asList(0, 2), new ArrayList<>(changed.keySet()));
+    }
+
+    @Test
+    public void removesGroupsPastTheEnd() {
+        List<Ordering> stored = Arrays.asList(group("a", "h1"), group("b", "h2"), group("c", "h3"));
+        List<Ordering> updated = Arrays.asList(group("a", "h1", "h2", "h3"));
+
+        Map<Integer, Ordering> changed = OrderingService.changedGroups(OrderingService.hashes(stored), updated);
+        assertEquals(Arrays.asList(0, 1, 2), new ArrayList<>(changed.keySet()));
+        assertSame(updated.get(0), changed.get(0));
+        assertTrue(changed.containsKey(1));
+        assertNull(changed.get(1));
+        assertNull(changed.get(2));
+    }
+
+    @Test
+    public void writesAddedGroups() {
+        List<Ordering> stored = Arrays.asList(group("a", "h1", "h2"));
+        List<Ordering> updated = Arrays.asList(group("a", "h1", "h2"), group("b"));
+
+        Map<Integer, Ordering> changed = OrderingService.changedGroups(OrderingService.hashes(stored), updated);
+        assertEquals(Arrays.asList(1), new ArrayList<>(changed.keySet()));
+    }
+
+    private static Ordering group(String id, String... hunks) {
+        Ordering group = new Ordering();
+        group.id = id;
+        group.diff = new ArrayList<>(Arrays.asList(hunks));
+        group.info = new TitleDescription();
+        group.info.title = "Group " + id;
+        group.info.description = "Description of " + id;
+        return group;
+    }
+}
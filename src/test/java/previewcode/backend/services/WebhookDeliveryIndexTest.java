@@ -0,0 +1,79 @@
+package previewcode.backend.services;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WebhookDeliveryIndexTest {
+
+    @Test
+    public void detectsRepeatedDeliveries() {
+        WebhookDeliveryIndex index = new WebhookDeliveryIndex(100, 60, new MetricsService());
+        String delivery = UUID.randomUUID().toString();
+        assertTrue(index.markSeen(delivery));
+        assertFalse(index.markSeen(delivery));
+        assertFalse(index.markSeen(delivery.toUpperCase()));
+        assertTrue(index.markSeen(UUID.randomUUID().toString()));
+    }
+
+    @Test
+    public void processesForgottenDeliveriesAgain() {
+        WebhookDeliveryIndex index = new WebhookDeliveryIndex(100, 60, new MetricsService());
+        String delivery = UUID.randomUUID().toString();
+        index.markSeen(delivery);
+        index.forget(delivery);
+        assertTrue(index.markSeen(delivery));
+        assertFalse(index.markSeen(delivery));
+    }
+
+    @Test
+    public void findsDeliveriesPastForgottenSlots() {
+        WebhookDeliveryIndex index = new WebhookDeliveryIndex(1000, 60, new MetricsService());
+        String[] deliveries = new String[500];
+        for (int i = 0; i < deliveries.length; i++) {
+            deliveries[i] = UUID.randomUUID().toString();
+            index.markSeen(deliveries[i]);
+        }
+        for (int i = 0; i < deliveries.length; i += 2) {
+            index.forget(deliveries[i]);
+        }
+        for (int i = 1; i < deliveries.length; i += 2) {
+            assertFalse(index.markSeen(deliveries[i]));
+        }
+    }
+
+    @Test
+    public void acceptsDeliveriesThatAreNotUuids() {
+        WebhookDeliveryIndex index = new WebhookDeliveryIndex(100, 60, new MetricsService());
+        assertTrue(index.markSeen("not-a-uuid"));
+        assertTrue(index.markSeen("not-a-uuid"));
+        assertTrue(index.markSeen(null));
+        assertTrue(index.markSeen("00000000-0000-0000-0000-000000000000"));
+        assertTrue(index.markSeen("00000000-0000-0000-0000-000000000000"));
+    }
+
+    @Test
+    public void remembersDeliveriesForOneMoreGeneration() {
+        // A capacity of 4 starts a new generation after every 4 deliveries
+        WebhookDeliveryIndex index = new WebhookDeliveryIndex(4, 60, new MetricsService());
+        String[] deliveries = new String[9];
+        for (int i = 0; i < deliveries.length; i++) {
+            deliveries[i] = UUID.randomUUID().toString();
+        }
+        for (int i = 0; i < 5; i++) {
+            assertTrue(index.markSeen(deliveries[i]));
+        }
+        // The first generation is now the previous one
+        assertFalse(index.markSeen(deliveries[0]));
+
+        for (int i = 5; i < 9; i++) {
+            assertTrue(index.markSeen(deliveries[i]));
+        }
+        // The first generation was cleared to make room
+        assertTrue(index.markSeen(deliveries[0]));
+        assertFalse(index.markSeen(deliveries[5]));
+    }
+}
@@ -0,0 +1,137 @@
+package previewcode.backend.services;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WebhookJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ShutdownRegistry shutdown;
+
+    @After
+    public void close() {
+        if (shutdown != null) {
+            shutdown.shutdown(Duration.ofSeconds(5));
+        }
+    }
+
+    @Test
+    public void replaysDeliveriesThatWereNotCompleted() throws Exception {
+        WebhookJournal journal = this.open(64 * 1024);
+        long first = journal.append("pull_request", "delivery-1", body("one"));
+        long second = journal.append("pull_request", "delivery-2", body("two"));
+        long third = journal.append("pull_request", "delivery-3", body("three"));
+        journal.complete(second);
+
+        journal = this.reopen(64 * 1024);
+        List<WebhookJournal.Entry> unfinished = journal.takeUnfinished();
+        assertEquals(2, unfinished.size());
+        assertEquals(first, unfinished.get(0).sequence);
+        assertEquals("pull_request", unfinished.get(0).event);
+        assertEquals("delivery-1", unfinished.get(0).delivery);
+        assertArrayEquals(body("one"), unfinished.get(0).body);
+        assertEquals(third, unfinished.get(1).sequence);
+        assertEquals("delivery-3", unfinished.get(1).delivery);
+        assertTrue(journal.takeUnfinished().isEmpty());
+
+        // Sequence numbers are not reused, so a replayed delivery can still be completed
+        assertTrue(journal.append("pull_request", "delivery-4", body("four")) > third);
+        journal.complete(first);
+        journal.complete(third);
+        journal = this.reopen(64 * 1024);
+        List<WebhookJournal.Entry> remaining = journal.takeUnfinished();
+        assertEquals(1, remaining.size());
+        assertEquals("delivery-4", remaining.get(0).delivery);
+    }
+
+    @Test
+    public void ignoresTornRecordAtTheEnd() throws Exception {
+        WebhookJournal journal = this.open(64 * 1024);
+        journal.append("pull_request", "delivery-1", body("one"));
+        shutdown.shutdown(Duration.ofSeconds(5));
+        shutdown = null;
+
+        // A record header whose payload was never written; the rest of the segment is zeroed
+        File[] segments = folder.getRoot().listFiles((dir, name) -> name.endsWith(".journal"));
+        assertEquals(1, segments.length);
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            file.seek(endOfRecords(file));
+            file.writeInt(100);
+            file.writeInt(12345);
+            file.writeByte(1);
+            file.writeLong(2);
+        }
+
+        journal = this.open(64 * 1024);
+        List<WebhookJournal.Entry> unfinished = journal.takeUnfinished();
+        assertEquals(1, unfinished.size());
+        assertEquals("delivery-1", unfinished.get(0).delivery);
+    }
+
+    @Test
+    public void deletesCompletedSegments() throws Exception {
+        WebhookJournal journal = this.open(512);
+        long kept = journal.append("pull_request", "kept", body("kept"));
+        for (int i = 0; i < 200; i++) {
+            journal.complete(journal.append("pull_request", "delivery-" + i, body("payload " + i)));
+        }
+        // The segment of the pending delivery is kept, along with the segments after it
+        assertTrue(segmentCount() > 1);
+
+        journal.complete(kept);
+        journal.complete(journal.append("pull_request", "last", body("last")));
+        assertTrue(segmentCount() <= 2);
+
+        journal = this.reopen(512);
+        assertTrue(journal.takeUnfinished().isEmpty());
+    }
+
+    private WebhookJournal open(int segmentSize) throws IOException {
+        shutdown = new ShutdownRegistry();
+        return new WebhookJournal(folder.getRoot().getPath(), segmentSize, 60_000, new MetricsService(), shutdown);
+    }
+
+    private WebhookJournal reopen(int segmentSize) throws IOException {
+        shutdown.shutdown(Duration.ofSeconds(5));
+        return this.open(segmentSize);
+    }
+
+    private int segmentCount() {
+        return folder.getRoot().listFiles((dir, name) -> name.endsWith(".journal")).length;
+    }
+
+    private static byte[] body(String value) {
+        return ("{\"value\":\"" + value + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The offset after the last record of a segment, whose unused space is zeroed
+     */
+    private static long endOfRecords(RandomAccessFile file) throws IOException {
+        long position = 0;
+        while (position + MappedLog.HEADER_SIZE <= file.length()) {
+            file.seek(position);
+            int size = file.readInt();
+            if (size <= 0) {
+                break;
+            }
+            position += MappedLog.HEADER_SIZE + size;
+        }
+        return position;
+    }
+}